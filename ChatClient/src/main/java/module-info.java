@@ -1,6 +1,8 @@
 module no.ntnu.datakomm.chat {
   requires javafx.controls;
   requires javafx.fxml;
+  // ClientMetrics exposes javax.management types in its public API
+  requires transitive java.management;
 
   opens no.ntnu.datakomm.chat to javafx.fxml;
   exports no.ntnu.datakomm.chat;
@@ -17,6 +17,9 @@ import javafx.stage.Stage;
  */
 public class App extends Application {
 
+    // The controller of the loaded layout, told when the application stops
+    private GUIController controller;
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -36,7 +39,9 @@ public class App extends Application {
         boolean loaded = false;
         if (fxmlUrl != null && cssUrl != null && iconUrl != null) {
             try {
-                root = FXMLLoader.load(fxmlUrl);
+                FXMLLoader loader = new FXMLLoader(fxmlUrl);
+                root = loader.load();
+                controller = loader.getController();
                 Scene scene = new Scene(root, 600, 400);
                 scene.getStylesheets().add(cssUrl.toURI().toString());
                 primaryStage.setTitle("NTNU Ålesund - ChatClient");
@@ -45,6 +50,7 @@ public class App extends Application {
                 anotherIcon = new Image(iconUrl.toURI().toString());
                 primaryStage.getIcons().add(anotherIcon);
                 primaryStage.show();
+                controller.setStage(primaryStage);
                 loaded = true;
             } catch (URISyntaxException | IOException e) {
                 System.out.println("Error while loading FXML: " + e.getMessage());
@@ -63,4 +69,14 @@ public class App extends Application {
             Platform.exit();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * This method is called automatically by JavaFX when the application stops
+     */
+    @Override
+    public void stop() {
+        if (controller != null) {
+            controller.shutdown();
+        }
+    }
+}
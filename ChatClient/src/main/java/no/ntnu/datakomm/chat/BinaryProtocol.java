@@ -0,0 +1,71 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary framing of the chat protocol, used after "binary" / "binaryok" have been exchanged.
+ * A frame is:
+ * <pre>
+ *   command id (1 byte) | field count (varint) | for each field: length (varint) | UTF-8 bytes
+ * </pre>
+ * Varints are unsigned LEB128: 7 bits per byte, least significant group first, high bit set on
+ * all bytes but the last. The fields are the arguments of the text command; since they are
+ * length-prefixed, message texts may contain newlines.
+ */
+final class BinaryProtocol {
+
+    // The command words, indexed by command id. Id 0 is not used
+    private static final String[] COMMANDS = {
+            null, "login", "msg", "privmsg", "users", "help", "loginok", "loginerr", "msgok",
+            "msgerr", "cmderr", "supported", "inbox", "async", "sync", "compress", "compressok",
+            "modeok"
+    };
+
+    // Number of fields of each command, -1 when every space-separated word is a field (lists).
+    // The last field takes the rest of the text
+    private static final int[] ARITY = {
+            0, 1, 1, 2, -1, 0, 0, 1, 1,
+            1, 1, -1, 0, 0, 0, 1, 1,
+            0
+    };
+
+    private static final byte[][] WORDS = new byte[COMMANDS.length][];
+    private static final Map<String, Integer> IDS = new HashMap<>();
+
+    static {
+        for (int id = 1; id < COMMANDS.length; id++) {
+            WORDS[id] = COMMANDS[id].getBytes(StandardCharsets.UTF_8);
+            IDS.put(COMMANDS[id], id);
+        }
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @param word A command word
+     * @return The id of the command, or -1 if it has none
+     */
+    static int idOf(String word) {
+        Integer id = IDS.get(word);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @param id A command id
+     * @return The command word as UTF-8 bytes, or null for an unknown id
+     */
+    static byte[] wordOf(int id) {
+        return id > 0 && id < WORDS.length ? WORDS[id] : null;
+    }
+
+    /**
+     * @param id A command id
+     * @return Number of fields of the command, -1 for a list of words
+     */
+    static int arityOf(int id) {
+        return ARITY[id];
+    }
+}
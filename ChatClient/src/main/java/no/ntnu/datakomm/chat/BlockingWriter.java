@@ -0,0 +1,78 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The writer thread of a blocking connection. It drains the {@link OutboundQueue} and writes
+ * everything that is pending with one write and one flush, so the threads sending commands (for
+ * example the GUI thread) never block on the socket.
+ */
+class BlockingWriter implements Runnable {
+
+    // How long close() waits for the pending commands to be written
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    private final OutboundQueue queue;
+    private final OutputStream out;
+    private final long maxLingerNanos;
+    // Called when writing to the socket fails
+    private final Runnable onError;
+    private final Thread thread;
+
+    /**
+     * @param queue          The commands to write
+     * @param out            The socket output stream
+     * @param maxLingerNanos How long to wait for more commands before writing a batch
+     * @param onError        Called (on the writer thread) when writing fails
+     */
+    BlockingWriter(OutboundQueue queue, OutputStream out, long maxLingerNanos, Runnable onError) {
+        this.queue = queue;
+        this.out = out;
+        this.maxLingerNanos = maxLingerNanos;
+        this.onError = onError;
+        this.thread = new Thread(this, "chat-writer");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Write whatever is still pending and stop the writer thread. Waits for a limited time only,
+     * so that a stalled socket can't block the caller forever.
+     */
+    void close() {
+        queue.close();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The writer loop: wait for commands, write them as one batch, repeat until closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (queue.awaitData(maxLingerNanos)) {
+                ByteBuffer batch;
+                while ((batch = queue.nextBatch()).hasRemaining()) {
+                    out.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            onError.run();
+        }
+    }
+}
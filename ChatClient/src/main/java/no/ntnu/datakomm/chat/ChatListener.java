@@ -45,6 +45,24 @@ public interface ChatListener {
      */
     public void onUserList(String[] usernames);
 
+    /**
+     * This method is called when a user list shows users who were not in the previous one. The
+     * first user list after connecting reports all its users as joined. Together with
+     * onUsersLeft() this lets a listener update its own list with the changes only.
+     *
+     * @param usernames The new users, in the order of the server's list
+     */
+    public default void onUsersJoined(String[] usernames) {
+    }
+
+    /**
+     * This method is called when users of the previous user list are missing in a new one.
+     *
+     * @param usernames The users who left
+     */
+    public default void onUsersLeft(String[] usernames) {
+    }
+
     /**
      * This method is called when a list of currently supported commands is
      * received
@@ -60,4 +78,12 @@ public interface ChatListener {
      */
     public void onCommandError(String errMsg);
 
+    /**
+     * This method is called when a lost connection has been re-established automatically (see
+     * {@link TCPClient#setReconnectPolicy(ReconnectPolicy)}). The client has logged in again
+     * with the last accepted username.
+     */
+    public default void onReconnected() {
+    }
+
 }
@@ -0,0 +1,158 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The log of the chat client. Messages below the current level are ignored before any string is
+ * built: use the methods taking a prefix and a value, or check {@link #isEnabled(Level)} first,
+ * so that a disabled level costs nothing on the message path.
+ * <p>
+ * Enabled messages are put in a bounded queue and printed to the console by a background thread,
+ * so that the socket threads never wait for console output. When the queue is full, messages are
+ * dropped (and counted) rather than blocking the caller.
+ */
+public final class ClientLog {
+
+    /**
+     * Log levels, from the most verbose to none at all.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    // How many messages can wait for the console
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private static volatile Level level = Level.INFO;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong droppedCount = new AtomicLong();
+
+    static {
+        Thread appender = new Thread(ClientLog::printLoop, "chat-log");
+        // The log must never keep the JVM alive
+        appender.setDaemon(true);
+        appender.start();
+        // Print what is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(ClientLog::drain, "chat-log-drain"));
+    }
+
+    private ClientLog() {
+    }
+
+    /**
+     * Set the lowest level which is logged. The default is INFO.
+     *
+     * @param newLevel The level
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * @return The lowest level which is logged
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param l A level
+     * @return True if messages of that level are logged
+     */
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() >= level.ordinal() && l != Level.OFF;
+    }
+
+    /**
+     * @return Number of messages lost because the console could not keep up
+     */
+    public static long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Log prefix + value at DEBUG level. The value is only converted to a string when the level is
+     * enabled.
+     */
+    static void debug(String prefix, Object value) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, prefix + value);
+        }
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    static void info(String prefix, Object value) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, prefix + value);
+        }
+    }
+
+    static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Log an error together with the stack trace of the exception which caused it.
+     */
+    static void error(String message, Throwable cause) {
+        if (isEnabled(Level.ERROR)) {
+            StringWriter trace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(trace));
+            enqueue(Level.ERROR, message + System.lineSeparator() + trace);
+        }
+    }
+
+    private static void log(Level l, String message) {
+        if (isEnabled(l)) {
+            enqueue(l, message);
+        }
+    }
+
+    /**
+     * Hand a message over to the console thread, or drop it if the queue is full.
+     */
+    private static void enqueue(Level l, String message) {
+        String line = "THREAD #" + Thread.currentThread().getId() + ": " + l + " " + message;
+        if (!queue.offer(line)) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * The console thread: print the messages as they arrive.
+     */
+    private static void printLoop() {
+        try {
+            while (true) {
+                System.out.println(queue.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Print all the queued messages right away.
+     */
+    private static void drain() {
+        String line;
+        while ((line = queue.poll()) != null) {
+            System.out.println(line);
+        }
+    }
+}
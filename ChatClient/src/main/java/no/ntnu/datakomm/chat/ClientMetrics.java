@@ -0,0 +1,274 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, latency histograms and queue depths of one TCPClient. The counters are updated on the
+ * message path without locks; the queue depths are read from the client when asked for.
+ * <p>
+ * While the client is connected, the metrics are registered as an MBean named
+ * "no.ntnu.datakomm.chat:type=TCPClient,name=client-N", so they can be read with JConsole or any
+ * other JMX tool.
+ */
+public class ClientMetrics implements ClientMetricsMBean {
+
+    // Gives every client a unique MBean name
+    private static final AtomicInteger clientCount = new AtomicInteger();
+
+    private final TCPClient client;
+    private final ObjectName objectName;
+    private boolean registered = false;
+
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder linesReceived = new LongAdder();
+    private final LongAdder commandsSent = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    // Time from sending a command until its reply arrived
+    final LatencyHistogram replyLatency = new LatencyHistogram();
+    // Time spent in one listener method, over all listeners; see also getListenerLatencies()
+    final LatencyHistogram listenerLatency = new LatencyHistogram();
+    // Round-trip time of the heartbeat probes
+    final LatencyHistogram heartbeatRtt = new LatencyHistogram();
+    private final LongAdder heartbeatsMissed = new LongAdder();
+
+    /**
+     * @param client The client whose queues are reported
+     */
+    ClientMetrics(TCPClient client) {
+        this.client = client;
+        ObjectName name;
+        try {
+            name = new ObjectName("no.ntnu.datakomm.chat:type=TCPClient,name=client-"
+                    + clientCount.incrementAndGet());
+        } catch (JMException e) {
+            // Can't happen, the name is always valid
+            throw new IllegalStateException(e);
+        }
+        this.objectName = name;
+    }
+
+    /**
+     * Publish the metrics over JMX, unless they are published already.
+     */
+    synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName);
+            registered = true;
+        } catch (JMException e) {
+            ClientLog.warn("Could not register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the metrics from JMX. The counters keep their values.
+     */
+    synchronized void unregister() {
+        if (!registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            ClientLog.warn("Could not unregister the metrics MBean: " + e.getMessage());
+        }
+        registered = false;
+    }
+
+    /**
+     * @return The name of the MBean
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    void addBytesReceived(long n) {
+        bytesReceived.add(n);
+    }
+
+    void addLineReceived() {
+        linesReceived.increment();
+    }
+
+    void addCommandSent(int bytes) {
+        commandsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    void addReconnect() {
+        reconnects.increment();
+    }
+
+    void addHeartbeatMissed() {
+        heartbeatsMissed.increment();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getLinesReceived() {
+        return linesReceived.sum();
+    }
+
+    @Override
+    public long getCommandsSent() {
+        return commandsSent.sum();
+    }
+
+    @Override
+    public String getReceivedByCommand() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : client.getReceivedCounts().entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public long getMessageErrors() {
+        return client.getReceivedCounts().getOrDefault("msgerr", 0L);
+    }
+
+    @Override
+    public long getCommandErrors() {
+        return client.getReceivedCounts().getOrDefault("cmderr", 0L);
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getReplyCount() {
+        return replyLatency.getCount();
+    }
+
+    @Override
+    public double getReplyLatencyMeanMicros() {
+        return replyLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getReplyLatencyP99Micros() {
+        return replyLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getReplyLatencyMaxMicros() {
+        return replyLatency.getMaxMicros();
+    }
+
+    @Override
+    public long getListenerCallCount() {
+        return listenerLatency.getCount();
+    }
+
+    @Override
+    public double getListenerLatencyMeanMicros() {
+        return listenerLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getListenerLatencyP99Micros() {
+        return listenerLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getListenerLatencyMaxMicros() {
+        return listenerLatency.getMaxMicros();
+    }
+
+    @Override
+    public String getListenerLatencies() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> e : client.getListenerLatencies().entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            LatencyHistogram h = e.getValue();
+            sb.append(e.getKey()).append(": calls=").append(h.getCount())
+                    .append(" mean=").append(String.format(Locale.ROOT, "%.1f", h.getMeanMicros()))
+                    .append(" p99=").append(h.getPercentileMicros(0.99))
+                    .append(" max=").append(h.getMaxMicros());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public long getHeartbeatCount() {
+        return heartbeatRtt.getCount();
+    }
+
+    @Override
+    public long getHeartbeatRttMinMicros() {
+        return heartbeatRtt.getMinMicros();
+    }
+
+    @Override
+    public double getHeartbeatRttMeanMicros() {
+        return heartbeatRtt.getMeanMicros();
+    }
+
+    @Override
+    public long getHeartbeatRttP99Micros() {
+        return heartbeatRtt.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getHeartbeatsMissed() {
+        return heartbeatsMissed.sum();
+    }
+
+    @Override
+    public int getEventQueueDepth() {
+        return client.getEventQueueDepth();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return client.getDroppedEventCount();
+    }
+
+    @Override
+    public long getCoalescedEvents() {
+        return client.getCoalescedEventCount();
+    }
+
+    @Override
+    public long getOutboundPendingBytes() {
+        return client.getOutboundPendingBytes();
+    }
+
+    @Override
+    public int getOutboxSize() {
+        return client.getOutboxSize();
+    }
+
+    @Override
+    public int getRepliesPending() {
+        return client.getRepliesPending();
+    }
+}
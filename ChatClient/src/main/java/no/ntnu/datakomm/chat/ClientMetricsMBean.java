@@ -0,0 +1,70 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The metrics of one TCPClient, published over JMX. All latencies are in microseconds.
+ */
+public interface ClientMetricsMBean {
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getLinesReceived();
+
+    long getCommandsSent();
+
+    /**
+     * @return Number of received lines per command word, for example "msg=120 msgok=40"
+     */
+    String getReceivedByCommand();
+
+    long getMessageErrors();
+
+    long getCommandErrors();
+
+    long getReconnects();
+
+    long getReplyCount();
+
+    double getReplyLatencyMeanMicros();
+
+    long getReplyLatencyP99Micros();
+
+    long getReplyLatencyMaxMicros();
+
+    long getListenerCallCount();
+
+    double getListenerLatencyMeanMicros();
+
+    long getListenerLatencyP99Micros();
+
+    long getListenerLatencyMaxMicros();
+
+    /**
+     * @return The calls and latencies of each registered listener, for example
+     * "GUIController@1b6d3586: calls=120 mean=35.2 p99=64 max=410; ..."
+     */
+    String getListenerLatencies();
+
+    long getHeartbeatCount();
+
+    long getHeartbeatRttMinMicros();
+
+    double getHeartbeatRttMeanMicros();
+
+    long getHeartbeatRttP99Micros();
+
+    long getHeartbeatsMissed();
+
+    int getEventQueueDepth();
+
+    long getDroppedEvents();
+
+    long getCoalescedEvents();
+
+    long getOutboundPendingBytes();
+
+    int getOutboxSize();
+
+    int getRepliesPending();
+}
@@ -0,0 +1,72 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of daemon threads shared by all the clients for delayed and periodic work
+ * (heartbeats, user list polls and similar), so that no client needs a timer thread of its own.
+ * The tasks on the scheduler must be short and never block; blocking connect attempts run on the
+ * separate connector pool instead.
+ */
+final class ClientScheduler {
+
+    // Number of threads in the pool. Two, so that a task of one client running a bit long does not
+    // delay the timers of the others
+    private static final int POOL_SIZE = 2;
+    // Number of connect attempts running at the same time. Further attempts wait in the queue, so
+    // the reconnects of many clients after a server restart can't use up the threads
+    private static final int CONNECTOR_POOL_SIZE = 4;
+    // How long an idle connector thread is kept
+    private static final long CONNECTOR_KEEP_ALIVE_SECONDS = 30;
+
+    private static final ScheduledExecutorService executor = createExecutor();
+    private static final ExecutorService connector = createConnector();
+
+    private ClientScheduler() {
+    }
+
+    /**
+     * @return The shared scheduler
+     */
+    static ScheduledExecutorService get() {
+        return executor;
+    }
+
+    /**
+     * @return The shared pool for blocking connect attempts
+     */
+    static ExecutorService connector() {
+        return connector;
+    }
+
+    private static ScheduledExecutorService createExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(POOL_SIZE, r -> {
+            Thread t = new Thread(r, "chat-scheduler-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // Cancelled tasks (for example a reconnect which is no longer needed) are dropped at once
+        e.setRemoveOnCancelPolicy(true);
+        return e;
+    }
+
+    private static ExecutorService createConnector() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor e = new ThreadPoolExecutor(CONNECTOR_POOL_SIZE, CONNECTOR_POOL_SIZE,
+                CONNECTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "chat-connector-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // No thread is kept while nobody reconnects
+        e.allowCoreThreadTimeOut(true);
+        return e;
+    }
+}
@@ -0,0 +1,171 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A dispatch table from command words to response handlers. The command word of a received line
+ * is hashed straight from the receive buffer and looked up in an open-addressing table, so every
+ * line costs one lookup no matter how many commands are registered.
+ * <p>
+ * Handlers may be registered from any thread: registration builds a new table and publishes it,
+ * the reading thread always sees a complete table and never takes a lock.
+ * <p>
+ * Every entry counts the lines it has handled, for the client metrics.
+ */
+class CommandDispatcher {
+
+    // The current table. Replaced as a whole on every registration
+    private volatile Table table = new Table(new byte[0][], new ResponseHandler[0], new LongAdder[0]);
+
+    // Called for lines with a command word nobody has registered
+    private final ResponseHandler unknownHandler;
+    private final LongAdder unknownCount = new LongAdder();
+
+    /**
+     * @param unknownHandler Handler called for commands that have no registered handler
+     */
+    CommandDispatcher(ResponseHandler unknownHandler) {
+        this.unknownHandler = unknownHandler;
+    }
+
+    /**
+     * Register a handler for a command word. An earlier handler for the same word is replaced.
+     *
+     * @param command The command word, for example "msg"
+     * @param handler The handler
+     */
+    synchronized void register(String command, ResponseHandler handler) {
+        byte[] key = command.getBytes(StandardCharsets.UTF_8);
+        Table old = table;
+        // Copy all old entries, except the one we replace. Its counter is kept
+        int count = 0;
+        byte[][] keys = new byte[old.size() + 1][];
+        ResponseHandler[] handlers = new ResponseHandler[keys.length];
+        LongAdder[] counters = new LongAdder[keys.length];
+        LongAdder counter = new LongAdder();
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] == null) {
+                continue;
+            }
+            if (Arrays.equals(old.keys[i], key)) {
+                counter = old.counters[i];
+            } else {
+                keys[count] = old.keys[i];
+                handlers[count] = old.handlers[i];
+                counters[count] = old.counters[i];
+                count++;
+            }
+        }
+        keys[count] = key;
+        handlers[count] = handler;
+        counters[count] = counter;
+        count++;
+        table = Table.build(keys, handlers, counters, count);
+    }
+
+    /**
+     * Call the handler registered for the command word of the line.
+     *
+     * @param line The received line
+     */
+    void dispatch(ServerLine line) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        if (mask >= 0) {
+            int slot = line.commandHash() & mask;
+            byte[] key;
+            while ((key = t.keys[slot]) != null) {
+                if (line.isCommand(key)) {
+                    t.counters[slot].increment();
+                    t.handlers[slot].handle(line);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        unknownCount.increment();
+        unknownHandler.handle(line);
+    }
+
+    /**
+     * @return Number of lines handled per command word, sorted by the word. Lines with an unknown
+     * command word are counted as "unknown"
+     */
+    Map<String, Long> getCounts() {
+        Table t = table;
+        Map<String, Long> counts = new TreeMap<>();
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != null) {
+                counts.put(new String(t.keys[i], StandardCharsets.UTF_8), t.counters[i].sum());
+            }
+        }
+        counts.put("unknown", unknownCount.sum());
+        return counts;
+    }
+
+    /**
+     * FNV-1a hash of a range of bytes. Used both for the registered words and the received lines.
+     *
+     * @param buf  The bytes
+     * @param from Index of the first byte
+     * @param to   Index after the last byte
+     * @return The hash
+     */
+    static int hash(byte[] buf, int from, int to) {
+        int h = 0x811c9dc5;
+        for (int i = from; i < to; i++) {
+            h ^= buf[i];
+            h *= 0x01000193;
+        }
+        // Mix the high bits down, the table uses only the low ones
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * An immutable open-addressing table with linear probing. The number of slots is a power of
+     * two, at least twice the number of entries.
+     */
+    private static class Table {
+        final byte[][] keys;
+        final ResponseHandler[] handlers;
+        final LongAdder[] counters;
+
+        Table(byte[][] keys, ResponseHandler[] handlers, LongAdder[] counters) {
+            this.keys = keys;
+            this.handlers = handlers;
+            this.counters = counters;
+        }
+
+        int size() {
+            int n = 0;
+            for (byte[] key : keys) {
+                if (key != null) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        static Table build(byte[][] entryKeys, ResponseHandler[] entryHandlers,
+                           LongAdder[] entryCounters, int count) {
+            int capacity = Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1;
+            byte[][] keys = new byte[capacity][];
+            ResponseHandler[] handlers = new ResponseHandler[capacity];
+            LongAdder[] counters = new LongAdder[capacity];
+            for (int i = 0; i < count; i++) {
+                int slot = hash(entryKeys[i], 0, entryKeys[i].length) & (capacity - 1);
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                keys[slot] = entryKeys[i];
+                handlers[slot] = entryHandlers[i];
+                counters[slot] = entryCounters[i];
+            }
+            return new Table(keys, handlers, counters);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The state of the connection of a TCPClient. The state only changes in this order:
+ * CLOSED, CONNECTING, CONNECTED, (LOGGED_IN), CLOSING, CLOSED. A failed connect, or one
+ * cancelled by disconnect(), goes from CONNECTING straight back to CLOSED.
+ */
+public enum ConnectionState {
+    /**
+     * No connection, connect() can be called
+     */
+    CLOSED,
+    /**
+     * connect() is in progress, disconnect() cancels it
+     */
+    CONNECTING,
+    /**
+     * Connected to the server, not logged in
+     */
+    CONNECTED,
+    /**
+     * Connected, and the server has accepted a login
+     */
+    LOGGED_IN,
+    /**
+     * The connection is being closed, the listeners get onDisconnect() when it's done
+     */
+    CLOSING
+}
@@ -0,0 +1,139 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed form of the chat protocol: after "compress deflate" / "compressok" both
+ * directions are one continuous deflate stream. Every batch of outgoing commands is compressed
+ * with SYNC_FLUSH, so the server can decode it as soon as it arrives, while the dictionary is
+ * kept between batches - repeated sender names and phrases compress better and better.
+ * <p>
+ * The compressing half is used by the writer of the outbound queue only, the inflating half by the
+ * thread reading the socket only. The deflater and inflater hold native zlib memory, which
+ * {@link #end()} frees when the connection is closed; each half is locked, so that end() can be
+ * called while the writer or the reader is still finishing.
+ */
+class DeflateCodec {
+
+    // zlib format, the same as DeflaterOutputStream and InflaterInputStream use
+    private final Deflater deflater = new Deflater();
+    private final Inflater inflater = new Inflater();
+    // Reusable output buffers
+    private ByteBuffer compressed = ByteBuffer.allocate(8 * 1024);
+    private final byte[] inflated = new byte[8 * 1024];
+    // Set by end(). Guarded by deflater and inflater respectively
+    private boolean deflaterEnded = false;
+    private boolean inflaterEnded = false;
+
+    /**
+     * Compress a batch of commands and flush the compressor.
+     *
+     * @param batch The bytes to compress, all of them are consumed
+     * @return Buffer holding the compressed bytes, valid until the next call. Empty after end(),
+     * the connection is closed then
+     */
+    ByteBuffer compress(ByteBuffer batch) {
+        synchronized (deflater) {
+            compressed.clear();
+            if (deflaterEnded) {
+                batch.position(batch.limit());
+                compressed.flip();
+                return compressed;
+            }
+            deflater.setInput(batch);
+            while (true) {
+                deflater.deflate(compressed, Deflater.SYNC_FLUSH);
+                // When the output buffer was filled up, there may be more to come
+                if (compressed.hasRemaining() && !batch.hasRemaining()) {
+                    break;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(compressed.capacity() * 2);
+                compressed.flip();
+                larger.put(compressed);
+                compressed = larger;
+            }
+            compressed.flip();
+            return compressed;
+        }
+    }
+
+    /**
+     * Decompress received bytes and append the result to the line framer.
+     *
+     * @param data   Compressed bytes received from the socket, all of them are consumed
+     * @param framer The framer receiving the decompressed bytes
+     * @throws IOException When the bytes are not a valid deflate stream
+     */
+    void inflate(ByteBuffer data, LineFramer framer) throws IOException {
+        synchronized (inflater) {
+            checkInflaterOpen();
+            inflater.setInput(data);
+            drainInflater(framer);
+        }
+    }
+
+    /**
+     * Decompress received bytes and append the result to the line framer.
+     *
+     * @param data   Array holding the compressed bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @param framer The framer receiving the decompressed bytes
+     * @throws IOException When the bytes are not a valid deflate stream
+     */
+    void inflate(byte[] data, int offset, int length, LineFramer framer) throws IOException {
+        synchronized (inflater) {
+            checkInflaterOpen();
+            inflater.setInput(data, offset, length);
+            drainInflater(framer);
+        }
+    }
+
+    /**
+     * Free the native memory of the compressor and the decompressor. The codec can't be used
+     * afterwards. Called when the connection is closed, may be called more than once.
+     */
+    void end() {
+        synchronized (deflater) {
+            deflaterEnded = true;
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflaterEnded = true;
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return True once end() has been called
+     */
+    boolean isEnded() {
+        synchronized (inflater) {
+            return inflaterEnded;
+        }
+    }
+
+    /**
+     * Must be called with the inflater lock held.
+     */
+    private void checkInflaterOpen() throws IOException {
+        if (inflaterEnded) {
+            throw new IOException("The compressed stream has been closed");
+        }
+    }
+
+    private void drainInflater(LineFramer framer) throws IOException {
+        try {
+            int n;
+            while ((n = inflater.inflate(inflated)) > 0) {
+                framer.feed(inflated, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data from the server", e);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers the events of one TCPClient to its listeners on a dispatcher thread, so that the
+ * thread reading the socket never runs (or waits for) listener code. The dispatcher threads come
+ * from a pool shared by all the clients: a thread is taken when events are published and given
+ * back once they are all delivered, so an idle or closed client holds no thread. The events of
+ * one client are delivered by one task at a time, in order.
+ * <p>
+ * The events are handed over through a ring of pre-allocated slots: publishing an event fills in
+ * the next free slot, and the dispatcher copies the slot out before calling the listeners. What
+ * happens when the listeners can't keep up depends on the {@link EventPolicy} of the event type:
+ * the publisher waits for the dispatcher to catch up, the oldest event is dropped, or the new
+ * event replaces the waiting one of the same type. This way the memory used stays the same during
+ * bursts. Events are always delivered in the order they were published: a replacing event is
+ * queued at the end, after the events published before it. A publisher which must never wait
+ * (the NIO selector thread) checks pauseWhenFull() first and stops reading until there is room.
+ * <p>
+ * Listeners are kept in a copy-on-write list, so they can be added and removed from any thread,
+ * also from inside a listener method. The time spent in each listener is measured separately.
+ */
+class EventBus {
+
+    // Number of slots in the ring, must be a power of two
+    static final int DEFAULT_CAPACITY = 1024;
+
+    // The dispatcher threads of all the buses. Threads are created when needed, so that a slow
+    // listener of one client never delays the events of the others, and end after a minute idle
+    private static final ExecutorService dispatchers = createDispatchers();
+
+    private final CopyOnWriteArrayList<Registration> listeners = new CopyOnWriteArrayList<>();
+
+    private final Slot[] ring;
+    private final int mask;
+    // Sequence numbers of the next slot to read and the next slot to write. They only grow, the
+    // slot index is sequence & mask. Guarded by lock
+    private long head = 0;
+    private long tail = 0;
+
+    // Policy of each event type, indexed by EventType.ordinal(). Guarded by lock
+    private final EventPolicy[] policies = new EventPolicy[EventType.values().length];
+    // Sequence number of the latest published event of each type, used to find the waiting event
+    // to coalesce with. Guarded by lock
+    private final long[] lastSequence = new long[EventType.values().length];
+    // Number of events thrown away and merged into a waiting one. Guarded by lock
+    private long droppedCount = 0;
+    private long coalescedCount = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    // Called by the dispatcher once the ring is half empty again, set by a reader which paused
+    // because the ring was nearly full, see pauseWhenFull(). Guarded by lock
+    private Runnable resume;
+
+    // True while a dispatch task is submitted or running. Guarded by lock
+    private boolean dispatching = false;
+    // The thread running the dispatch task, null when none. Guarded by lock
+    private Thread dispatcher;
+    // The event being delivered, copied out of the ring so that the slot can be reused at once.
+    // Used by the dispatch task only
+    private final Slot current = new Slot();
+
+    // Time spent in each listener method, over all listeners
+    private final LatencyHistogram listenerLatency;
+
+    /**
+     * A registered listener and the time spent in its methods.
+     */
+    private static class Registration {
+        final ChatListener listener;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Registration(ChatListener listener) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * One event: the type and the arguments of the listener method. Unused fields are null.
+     */
+    private static class Slot {
+        EventType type;
+        boolean success;
+        String text;
+        String[] strings;
+        TextMessage message;
+
+        void copyFrom(Slot other) {
+            type = other.type;
+            success = other.success;
+            text = other.text;
+            strings = other.strings;
+            message = other.message;
+        }
+
+        void clear() {
+            type = null;
+            text = null;
+            strings = null;
+            message = null;
+        }
+    }
+
+    /**
+     * Create the bus. No thread is used until the first event is published.
+     *
+     * @param capacity        Number of events which can wait for delivery, rounded up to a power of two
+     * @param listenerLatency Receives the time spent in each listener method, over all listeners
+     */
+    EventBus(int capacity, LatencyHistogram listenerLatency) {
+        this.listenerLatency = listenerLatency;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+        }
+        mask = size - 1;
+
+        Arrays.fill(policies, EventPolicy.BLOCK);
+        // Only the latest user list and supported command list matter
+        policies[EventType.USER_LIST.ordinal()] = EventPolicy.COALESCE;
+        policies[EventType.SUPPORTED_COMMANDS.ordinal()] = EventPolicy.COALESCE;
+        Arrays.fill(lastSequence, -1);
+    }
+
+    private static ExecutorService createDispatchers() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "chat-events-" + threadCount.incrementAndGet());
+            // Delivering events must never keep the JVM alive
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Register a listener, unless it is registered already.
+     *
+     * @param listener The listener
+     */
+    synchronized void addListener(ChatListener listener) {
+        for (Registration r : listeners) {
+            if (r.listener == listener) {
+                return;
+            }
+        }
+        listeners.add(new Registration(listener));
+    }
+
+    /**
+     * Unregister a listener. Events already being delivered may still reach it.
+     *
+     * @param listener The listener
+     */
+    synchronized void removeListener(ChatListener listener) {
+        listeners.removeIf(r -> r.listener == listener);
+    }
+
+    /**
+     * @return The time spent in the methods of each registered listener, in registration order.
+     * The key names the listener: its class and identity hash code
+     */
+    Map<String, LatencyHistogram> getListenerLatencies() {
+        Map<String, LatencyHistogram> result = new LinkedHashMap<>();
+        for (Registration r : listeners) {
+            result.put(r.listener.getClass().getName() + "@"
+                    + Integer.toHexString(System.identityHashCode(r.listener)), r.latency);
+        }
+        return result;
+    }
+
+    /**
+     * Set what happens to events of a type when the listeners can't keep up.
+     *
+     * @param type   The event type
+     * @param policy The policy
+     */
+    void setPolicy(EventType type, EventPolicy policy) {
+        lock.lock();
+        try {
+            policies[type.ordinal()] = policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of events thrown away because of the DROP_OLDEST policy
+     */
+    long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of events merged into a waiting event because of the COALESCE policy
+     */
+    long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalescedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check if a reader which must not wait (the NIO selector thread) can go on publishing. It
+     * can if the ring has room for the given number of events, counting the waiting events which
+     * a new event may replace because of the DROP_OLDEST policy.
+     *
+     * @param events Number of events the reader may publish before it checks again
+     * @param resume Called (on the dispatcher thread) once the ring is half empty, only if this
+     *               method returns true
+     * @return True if the ring is nearly full and the reader must stop until resume is called
+     */
+    boolean pauseWhenFull(int events, Runnable resume) {
+        lock.lock();
+        try {
+            long room = ring.length - (tail - head);
+            for (long seq = head; seq < tail && room < events; seq++) {
+                if (policies[ring[(int) (seq & mask)].type.ordinal()] == EventPolicy.DROP_OLDEST) {
+                    room++;
+                }
+            }
+            if (room >= events) {
+                return false;
+            }
+            this.resume = resume;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publish an event. Arguments not used by the event type are ignored.
+     *
+     * @param type    The event type
+     * @param success Login result, for LOGIN_RESULT
+     * @param text    Error message, for LOGIN_RESULT, MESSAGE_ERROR and COMMAND_ERROR
+     * @param strings Usernames or commands, for USER_LIST, USERS_JOINED, USERS_LEFT and
+     *                SUPPORTED_COMMANDS
+     * @param message The message, for MESSAGE
+     */
+    void publish(EventType type, boolean success, String text, String[] strings, TextMessage message) {
+        lock.lock();
+        try {
+            EventPolicy policy = policies[type.ordinal()];
+            if (policy == EventPolicy.COALESCE) {
+                long waiting = lastSequence[type.ordinal()];
+                if (waiting >= head) {
+                    // The previous event of this type has not been delivered yet: remove it, the
+                    // new one is queued at the end so that it comes after the events published
+                    // before it. This frees a slot, the new event never waits
+                    remove(waiting);
+                    lastSequence[type.ordinal()] = -1;
+                    coalescedCount++;
+                }
+            }
+            while (tail - head == ring.length) {
+                // Any event may take the place of a droppable one, so that no publisher waits
+                // while droppable events are queued
+                if (dropOldest()) {
+                    break;
+                }
+                if (Thread.currentThread() == dispatcher) {
+                    // A listener caused an event while the ring is full. The dispatcher can't wait
+                    // for itself, so this event is delivered right away
+                    Slot direct = new Slot();
+                    fill(direct, type, success, text, strings, message);
+                    lock.unlock();
+                    try {
+                        deliver(direct);
+                    } finally {
+                        lock.lock();
+                    }
+                    return;
+                }
+                notFull.awaitUninterruptibly();
+            }
+            fill(ring[(int) (tail & mask)], type, success, text, strings, message);
+            lastSequence[type.ordinal()] = tail;
+            tail++;
+            if (!dispatching) {
+                dispatching = true;
+                dispatchers.execute(this::dispatch);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Throw away the oldest waiting event of a DROP_OLDEST type, to make room for a new event of
+     * any type. Must be called with the lock held.
+     *
+     * @return True if an event was dropped, false if no waiting event may be dropped
+     */
+    private boolean dropOldest() {
+        long victim = head;
+        while (victim < tail && policies[ring[(int) (victim & mask)].type.ordinal()] != EventPolicy.DROP_OLDEST) {
+            victim++;
+        }
+        if (victim == tail) {
+            return false;
+        }
+        remove(victim);
+        droppedCount++;
+        return true;
+    }
+
+    /**
+     * Remove a waiting event from the ring. The events waiting in front of it are moved one slot
+     * forward, so the order of the others does not change. Must be called with the lock held.
+     *
+     * @param victim Sequence number of the event
+     */
+    private void remove(long victim) {
+        Slot removed = ring[(int) (victim & mask)];
+        removed.clear();
+        for (long seq = victim; seq > head; seq--) {
+            Slot moved = ring[(int) ((seq - 1) & mask)];
+            ring[(int) (seq & mask)] = moved;
+            if (lastSequence[moved.type.ordinal()] == seq - 1) {
+                lastSequence[moved.type.ordinal()] = seq;
+            }
+        }
+        ring[(int) (head & mask)] = removed;
+        head++;
+    }
+
+    private static void fill(Slot slot, EventType type, boolean success, String text,
+                             String[] strings, TextMessage message) {
+        slot.type = type;
+        slot.success = success;
+        slot.text = text;
+        slot.strings = strings;
+        slot.message = message;
+    }
+
+    /**
+     * @return Number of events waiting for delivery
+     */
+    int size() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The dispatch task: take events from the ring one by one and deliver them, until the ring is
+     * empty. Runs on a thread of the shared pool.
+     */
+    private void dispatch() {
+        while (true) {
+            Runnable r = null;
+            lock.lock();
+            try {
+                if (head == tail) {
+                    // Events published from now on submit a new task
+                    dispatching = false;
+                    dispatcher = null;
+                    return;
+                }
+                dispatcher = Thread.currentThread();
+                Slot slot = ring[(int) (head & mask)];
+                current.copyFrom(slot);
+                slot.clear();
+                head++;
+                notFull.signal();
+                if (resume != null && tail - head <= ring.length / 2) {
+                    r = resume;
+                    resume = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (r != null) {
+                r.run();
+            }
+            deliver(current);
+            current.clear();
+        }
+    }
+
+    /**
+     * Call the listener method matching the event on every listener.
+     *
+     * @param event The event
+     */
+    private void deliver(Slot event) {
+        for (Registration r : listeners) {
+            ChatListener l = r.listener;
+            long start = System.nanoTime();
+            try {
+                switch (event.type) {
+                    case LOGIN_RESULT:
+                        l.onLoginResult(event.success, event.text);
+                        break;
+                    case DISCONNECT:
+                        l.onDisconnect();
+                        break;
+                    case RECONNECTED:
+                        l.onReconnected();
+                        break;
+                    case USER_LIST:
+                        l.onUserList(event.strings);
+                        break;
+                    case USERS_JOINED:
+                        l.onUsersJoined(event.strings);
+                        break;
+                    case USERS_LEFT:
+                        l.onUsersLeft(event.strings);
+                        break;
+                    case MESSAGE:
+                        l.onMessageReceived(event.message);
+                        break;
+                    case MESSAGE_ERROR:
+                        l.onMessageError(event.text);
+                        break;
+                    case COMMAND_ERROR:
+                        l.onCommandError(event.text);
+                        break;
+                    case SUPPORTED_COMMANDS:
+                        l.onSupportedCommands(event.strings);
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // A failing listener must not stop the delivery to the others
+                ClientLog.error("Listener failed on " + event.type, e);
+            }
+            long elapsed = System.nanoTime() - start;
+            r.latency.record(elapsed);
+            listenerLatency.record(elapsed);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * What a TCPClient does with a new event when its listeners can't keep up, see
+ * {@link TCPClient#setEventPolicy(EventType, EventPolicy)}.
+ */
+public enum EventPolicy {
+    /**
+     * Wait until there is room for the event. The client stops reading from the socket meanwhile,
+     * so the server is slowed down by TCP flow control. Events are never lost. If events of a
+     * DROP_OLDEST type are waiting, the oldest one is dropped instead of waiting. In NIO mode the
+     * shared selector thread never waits: it pauses reading the socket of this client before the
+     * queue is full.
+     */
+    BLOCK,
+    /**
+     * When the queue is full, throw away the oldest waiting event of a DROP_OLDEST type to make
+     * room, also for a new event of another type. Events of the other types are never dropped.
+     */
+    DROP_OLDEST,
+    /**
+     * Only the latest event of the type is kept: a new event replaces the one still waiting for
+     * delivery. The new event takes its place in the queue as a new one, after the events of other
+     * types published before it. Suitable for state snapshots like the user list. When the queue
+     * is full and no event of the type is waiting, the client waits like with BLOCK.
+     */
+    COALESCE
+}
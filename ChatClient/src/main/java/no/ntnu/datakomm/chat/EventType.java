@@ -0,0 +1,18 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The kinds of events a TCPClient delivers to its listeners, one for every method of
+ * {@link ChatListener}.
+ */
+public enum EventType {
+    LOGIN_RESULT,
+    DISCONNECT,
+    RECONNECTED,
+    USER_LIST,
+    USERS_JOINED,
+    USERS_LEFT,
+    MESSAGE,
+    MESSAGE_ERROR,
+    COMMAND_ERROR,
+    SUPPORTED_COMMANDS
+}
@@ -0,0 +1,93 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands GUI updates from other threads to the JavaFX thread in batches. Instead of one
+ * Platform.runLater() per event, the updates are collected in a queue and a single drain task is
+ * scheduled; everything queued until it runs is applied in that task, so a burst of events costs
+ * one task and one layout pass. Updates posted while a drain runs are left for the next drain, so
+ * a steady stream of events can't keep the JavaFX thread busy in one task.
+ * <p>
+ * After each drain, an optional task runs on the JavaFX thread, for example to apply the changes
+ * the updates have collected in one go.
+ */
+class FxBatcher {
+
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    // Number of updates in pending. Incremented after the update is queued, so it never counts
+    // one which is not in the queue yet
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // True while a drain task is scheduled and has not started yet
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor fxExecutor;
+    private final Runnable afterDrain;
+    // True while the updates are being applied. JavaFX thread only
+    private boolean draining = false;
+
+    /**
+     * @param fxExecutor Runs tasks on the JavaFX thread, normally Platform::runLater
+     * @param afterDrain Run on the JavaFX thread after each batch of updates, can be null
+     */
+    FxBatcher(Executor fxExecutor, Runnable afterDrain) {
+        this.fxExecutor = fxExecutor;
+        this.afterDrain = afterDrain;
+    }
+
+    /**
+     * Queue an update for the JavaFX thread. May be called from any thread.
+     *
+     * @param update The update
+     */
+    void post(Runnable update) {
+        pending.add(update);
+        pendingCount.incrementAndGet();
+        // Only the first update of a batch schedules the drain
+        if (scheduled.compareAndSet(false, true)) {
+            fxExecutor.execute(this::drain);
+        }
+    }
+
+    /**
+     * @return True while the queued updates are being applied. Must be called on the JavaFX thread
+     */
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Apply the updates queued when the drain starts. Runs on the JavaFX thread.
+     */
+    private void drain() {
+        // Updates posted from now on schedule a new drain, none can be left behind
+        scheduled.set(false);
+        int count = pendingCount.get();
+        if (count == 0) {
+            // Already applied by the previous drain
+            return;
+        }
+        draining = true;
+        int taken = 0;
+        try {
+            while (taken < count) {
+                Runnable update = pending.poll();
+                taken++;
+                try {
+                    update.run();
+                } catch (RuntimeException e) {
+                    ClientLog.error("GUI update failed", e);
+                }
+            }
+        } finally {
+            pendingCount.addAndGet(-taken);
+            draining = false;
+        }
+        if (afterDrain != null) {
+            afterDrain.run();
+        }
+    }
+}
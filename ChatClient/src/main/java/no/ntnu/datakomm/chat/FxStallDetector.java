@@ -0,0 +1,118 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures how responsive the JavaFX thread is. A probe task on the shared scheduler regularly
+ * posts an empty task to the JavaFX thread and notes when; the time until it runs is how long the
+ * thread was busy. Delays above the threshold are logged as stalls: once while the thread is still
+ * blocked, and again with the full duration when it is free.
+ */
+class FxStallDetector {
+
+    private final Executor fxExecutor;
+    // The clock, System::nanoTime except in tests
+    private final LongSupplier nanoTime;
+    private final long thresholdNanos;
+    private final long periodMillis;
+
+    // When the probe waiting for the JavaFX thread was posted, 0 if none is waiting
+    private final AtomicLong postedAt = new AtomicLong(0);
+    // True when the stall of the waiting probe has already been logged
+    private volatile boolean stallLogged = false;
+    private final AtomicLong stallCount = new AtomicLong();
+    private final AtomicLong maxStallMillis = new AtomicLong();
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param fxExecutor      Runs tasks on the JavaFX thread, normally Platform::runLater
+     * @param thresholdMillis Delays longer than this are reported as stalls
+     */
+    FxStallDetector(Executor fxExecutor, long thresholdMillis) {
+        this(fxExecutor, thresholdMillis, System::nanoTime);
+    }
+
+    /**
+     * @param fxExecutor      Runs tasks on the JavaFX thread
+     * @param thresholdMillis Delays longer than this are reported as stalls
+     * @param nanoTime        The clock, in nanoseconds
+     */
+    FxStallDetector(Executor fxExecutor, long thresholdMillis, LongSupplier nanoTime) {
+        if (thresholdMillis < 2) {
+            throw new IllegalArgumentException("Invalid stall threshold: " + thresholdMillis);
+        }
+        this.fxExecutor = fxExecutor;
+        this.nanoTime = nanoTime;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        // Probe often enough to notice a stall of about the threshold
+        this.periodMillis = thresholdMillis / 2;
+    }
+
+    /**
+     * Start probing.
+     */
+    synchronized void start() {
+        if (task == null) {
+            task = ClientScheduler.get().scheduleAtFixedRate(this::probe, periodMillis, periodMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop probing.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * @return Number of stalls longer than the threshold
+     */
+    long getStallCount() {
+        return stallCount.get();
+    }
+
+    /**
+     * @return The longest stall so far, in milliseconds
+     */
+    long getMaxStallMillis() {
+        return maxStallMillis.get();
+    }
+
+    /**
+     * Runs on the scheduler: post a probe, or check on the one still waiting.
+     */
+    void probe() {
+        long now = nanoTime.getAsLong();
+        long posted = postedAt.get();
+        if (posted == 0) {
+            stallLogged = false;
+            postedAt.set(now);
+            fxExecutor.execute(this::probeRan);
+        } else if (now - posted > thresholdNanos && !stallLogged) {
+            stallLogged = true;
+            ClientLog.warn("The JavaFX thread has been blocked for "
+                    + TimeUnit.NANOSECONDS.toMillis(now - posted) + " ms");
+        }
+    }
+
+    /**
+     * Runs on the JavaFX thread when it got to the probe.
+     */
+    private void probeRan() {
+        long delay = nanoTime.getAsLong() - postedAt.getAndSet(0);
+        if (delay > thresholdNanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(delay);
+            stallCount.incrementAndGet();
+            maxStallMillis.accumulateAndGet(millis, Math::max);
+            ClientLog.warn("The JavaFX thread was blocked for " + millis + " ms");
+        }
+    }
+}
@@ -2,16 +2,16 @@ package no.ntnu.datakomm.chat;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Pane;
-import javafx.scene.layout.Priority;
-import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
 
-import static java.lang.Thread.sleep;
-
-import javafx.collections.ObservableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The graphical interface containing all the user interface controls: buttons, inputs, etc.
@@ -37,10 +37,10 @@ public class GUIController implements ChatListener {
     private Button helpBtn;
 
     @FXML
-    private VBox userList;
+    private ListView<String> userList;
 
     @FXML
-    private VBox textOutput;
+    private ListView<TranscriptEntry> textOutput;
 
     @FXML
     private TextArea textInput;
@@ -57,15 +57,48 @@ public class GUIController implements ChatListener {
     @FXML
     private TitledPane serverStatus;
 
-    @FXML
-    private ScrollPane outputScroll;
-
     // The TCP client that can connect, send commands, etc.
     private TCPClient tcpClient;
 
-    // Active user list will be refreshed periodically. This will be done on a separate CPU Thread to avoid blocking
-    // the GUI.
-    private Thread userPollThread;
+    // The messages of the chat window. Only the newest ones (or the ones the user has scrolled
+    // to) are in the ListView, the rest of the history is kept in memory by the transcript
+    private Transcript transcript;
+    // Number of messages in the ListView, can be set with -Dchat.transcript.retention=...
+    private static final int TRANSCRIPT_RETENTION = Integer.getInteger("chat.transcript.retention", 1000);
+    // Number of messages kept in memory for scrolling back, can be set with -Dchat.transcript.history=...
+    private static final int TRANSCRIPT_HISTORY = Math.max(TRANSCRIPT_RETENTION,
+            Integer.getInteger("chat.transcript.history", 100000));
+    // Number of older or newer messages copied from the history when scrolling past the window
+    private static final int TRANSCRIPT_PAGE = 100;
+    // The vertical scroll bar of the chat window, found once the ListView has its skin
+    private ScrollBar transcriptScrollBar;
+
+    // The users shown in the user panel, kept sorted and changed with the joined/left diffs
+    private final UserListModel users = new UserListModel();
+
+    // Delivers the updates from the TcpClient to the GUI thread, a whole burst of them at a time
+    private final FxBatcher guiUpdates = new FxBatcher(Platform::runLater, this::flushTranscript);
+    // Messages waiting to be added to the transcript in one go, and whether the chat window should
+    // jump to the newest message. GUI thread only
+    private final List<TranscriptEntry> pendingEntries = new ArrayList<>();
+    private boolean pendingJumpToEnd = false;
+
+    // Runs the network calls started from the GUI (connect, login, send, ...), which may block on the
+    // socket, so that they never freeze the GUI thread. A single thread keeps them in order
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-gui-io");
+        t.setDaemon(true);
+        return t;
+    });
+    // Logs when the GUI thread is blocked for longer than the threshold, can be set with
+    // -Dchat.fx.stallThresholdMillis=...
+    private final FxStallDetector stallDetector = new FxStallDetector(Platform::runLater,
+            Long.getLong("chat.fx.stallThresholdMillis", 200));
+
+    // Active user list will be refreshed periodically, on the shared scheduler to avoid blocking the GUI. The
+    // interval is between chat.users.pollMillis (while the list changes) and chat.users.maxPollMillis (while it is
+    // stable or the window is minimized)
+    private UserListPoller userPoller;
 
     /**
      * Called by the FXML loader after the labels declared above are injected:
@@ -73,11 +106,109 @@ public class GUIController implements ChatListener {
     public void initialize() {
         //Note if you want to use the manual server you have to start the manualServer before the App class
         tcpClient = new TCPClient();
+        userPoller = new UserListPoller(tcpClient::refreshUserList, tcpClient::isConnectionActive,
+                Long.getLong("chat.users.pollMillis", 3000), Long.getLong("chat.users.maxPollMillis", 30000));
         hostInput.setText("datakomm.work"); //datakomm.work
         portInput.setText("1300"); //1300
-        textOutput.heightProperty().addListener((observable, oldValue, newValue)
-                -> outputScroll.setVvalue(1.0));
+        setupTranscript();
+        setupUserList();
         setKeyAndClickListeners();
+        stallDetector.start();
+    }
+
+    /**
+     * Show the users in the ListView. Like the transcript, only the visible users get a cell, and
+     * the cells are reused while scrolling.
+     */
+    private void setupUserList() {
+        userList.setItems(users.getUsers());
+        userList.setCellFactory(list -> {
+            ListCell<String> cell = new ListCell<>() {
+                @Override
+                protected void updateItem(String user, boolean empty) {
+                    super.updateItem(user, empty);
+                    setText(empty ? null : user);
+                }
+            };
+            cell.getStyleClass().add("user");
+            // Set an "on-click" listener for the item in the user list - allow to send a private message
+            cell.setOnMouseClicked(event -> {
+                if (!cell.isEmpty()) {
+                    textInput.setText("/privmsg " + cell.getItem() + " ");
+                    textInput.requestFocus();
+                    textInput.end();
+                }
+            });
+            return cell;
+        });
+    }
+
+    /**
+     * Called by the App when the window is closed: stop the background work of the GUI.
+     */
+    public void shutdown() {
+        userPoller.stop();
+        stallDetector.stop();
+        ioExecutor.shutdown();
+    }
+
+    /**
+     * Called by the App with the main window: the user list is polled less often while it is
+     * minimized.
+     *
+     * @param stage The main window
+     */
+    void setStage(Stage stage) {
+        stage.iconifiedProperty().addListener((observable, wasIconified, iconified)
+                -> userPoller.setIdle(iconified));
+    }
+
+    /**
+     * Show the transcript in the ListView. The ListView creates cells only for the visible
+     * messages; scrolling to the top or the bottom of the list pages in older or newer messages.
+     */
+    private void setupTranscript() {
+        transcript = new Transcript(TRANSCRIPT_RETENTION, TRANSCRIPT_HISTORY);
+        textOutput.setItems(transcript.getItems());
+        textOutput.setCellFactory(list -> new TranscriptCell(list));
+        // The scroll bar only exists once the skin has been created
+        textOutput.skinProperty().addListener((observable, oldSkin, newSkin) -> {
+            for (Node node : textOutput.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                    transcriptScrollBar = (ScrollBar) node;
+                    transcriptScrollBar.valueProperty().addListener((obs, oldValue, newValue)
+                            -> pageTranscript(newValue.doubleValue()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Page in older or newer messages when the chat window is scrolled to the top or the bottom.
+     *
+     * @param scrollValue The new position of the scroll bar
+     */
+    private void pageTranscript(double scrollValue) {
+        if (scrollValue <= transcriptScrollBar.getMin() && transcript.hasOlder()) {
+            int added = transcript.pageOlder(TRANSCRIPT_PAGE);
+            // Keep the message which was at the top in view
+            textOutput.scrollTo(added);
+        } else if (scrollValue >= transcriptScrollBar.getMax() && !transcript.isAtEnd()) {
+            int before = transcript.getItems().size();
+            int firstBefore = transcript.getFirstIndex();
+            transcript.pageNewer(TRANSCRIPT_PAGE);
+            int dropped = transcript.getFirstIndex() - firstBefore;
+            // Keep the message which was at the bottom in view
+            textOutput.scrollTo(Math.max(0, before - dropped - 1));
+        }
+    }
+
+    /**
+     * @return True if the chat window shows the newest message, so new ones should scroll into view
+     */
+    private boolean isFollowingTranscript() {
+        return transcript.isAtEnd() && (transcriptScrollBar == null || !transcriptScrollBar.isVisible()
+                || transcriptScrollBar.getValue() >= transcriptScrollBar.getMax());
     }
 
     /**
@@ -87,15 +218,21 @@ public class GUIController implements ChatListener {
         connectBtn.setOnMouseClicked(event -> {
             // Mouse clicked on "Connect" button
             if (tcpClient.isConnectionActive()) {
-                tcpClient.disconnect();
-                updateButtons(false);
+                userPoller.stop();
+                ioExecutor.execute(() -> {
+                    tcpClient.disconnect();
+                    updateButtons(false);
+                });
+                // The next connection reports all its users as joined
+                users.clear();
             } else {
                 setupConnection(hostInput.getText(), portInput.getText());
             }
         });
         loginBtn.setOnMouseClicked(event -> {
             // Mouse clicked on "Login" button
-            tcpClient.tryLogin(loginInput.getText());
+            String username = loginInput.getText();
+            ioExecutor.execute(() -> tcpClient.tryLogin(username));
             loginInput.setText("");
         });
         textInput.setOnKeyPressed(event -> {
@@ -112,7 +249,7 @@ public class GUIController implements ChatListener {
             textInput.requestFocus();
         });
         // Mouse clicked on "Help" button
-        helpBtn.setOnMouseClicked(event -> tcpClient.askSupportedCommands());
+        helpBtn.setOnMouseClicked(event -> ioExecutor.execute(() -> tcpClient.askSupportedCommands()));
     }
 
     /**
@@ -140,9 +277,9 @@ public class GUIController implements ChatListener {
                 if (msgParts.length == 3 && msgParts[0].equals("/privmsg")) {
                     String recipient = msgParts[1];
                     String message = msgParts[2];
-                    tcpClient.sendPrivateMessage(recipient, message);
+                    ioExecutor.execute(() -> tcpClient.sendPrivateMessage(recipient, message));
                 } else {
-                    tcpClient.sendPublicMessage(msgToSend);
+                    ioExecutor.execute(() -> tcpClient.sendPublicMessage(msgToSend));
                 }
                 msg = new TextMessage("", false, msgToSend);
             } else {
@@ -162,58 +299,53 @@ public class GUIController implements ChatListener {
      * @param warning When true, this message is a warning that must be displayed to the user
      */
     private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what 
-        // type of message this is
-
-        HBox message = new HBox();
-        VBox messageContent = new VBox();
-        String senderText;
-        Label messageSender = new Label();
-        messageSender.getStyleClass().add("sender");
-        if (msg.isPrivate()) {
-            senderText = "Private from " + msg.getSender() + ":";
-            messageSender.getStyleClass().add("private");
-        } else {
-            senderText = msg.getSender() + ":";
-        }
-        messageSender.setText(senderText);
-        Label messageText = new Label(msg.getText());
-        ObservableList<String> textStyle = messageText.getStyleClass();
-        textStyle.add("message");
-        messageText.setWrapText(true);
-        Pane spacer = new Pane();
-        HBox.setHgrow(spacer, Priority.ALWAYS);
-        spacer.setMinSize(10, 1);
+        // Find out how this message is shown. The ListView cell creates the GUI elements and sets
+        // their style according to the kind of message
+        TranscriptEntry.Kind kind;
         if (warning) {
-            // This message is a warning/info, add specific style to it
-            messageContent.getChildren().addAll(messageText);
-            message.getChildren().addAll(messageContent);
-            if (msg.getSender().equals("err")) {
-                textStyle.add("warning");
+            // This message is a warning/info
+            kind = msg.getSender().equals("err") ? TranscriptEntry.Kind.WARNING : TranscriptEntry.Kind.INFO;
+        } else if (local) {
+            if (tcpClient.isConnectionActive()) {
+                kind = TranscriptEntry.Kind.SENT;
             } else {
-                textStyle.add("info");
+                // Trying to send a message without an active connection
+                serverStatus.setText("Please login to send messages to server");
+                kind = TranscriptEntry.Kind.FAILED;
             }
         } else {
-            // Regular message
-            if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    // Trying to send a message without an active connection
-                    serverStatus.setText("Please login to send messages to server");
-                    textStyle.add("failedMessage");
-                }
-                // Add empty space first (left), then the message (right)
-                messageContent.getChildren().addAll(messageText);
-                message.getChildren().addAll(spacer, messageContent);
-            } else {
-                textStyle.add("otherMessage");
-                // Add message first (left), then empty space (right)
-                messageContent.getChildren().addAll(messageSender, messageText);
-                message.getChildren().addAll(messageContent, spacer);
-            }
+            kind = TranscriptEntry.Kind.RECEIVED;
+        }
+
+        pendingEntries.add(new TranscriptEntry(kind, msg));
+        if (local && !warning) {
+            // The user wants to see what they just sent, also when reading older messages
+            pendingJumpToEnd = true;
+        }
+        // During a burst of updates the messages are added together after the last one
+        if (!guiUpdates.isDraining()) {
+            flushTranscript();
+        }
+    }
+
+    /**
+     * Add the pending messages to the transcript with a single change of the ListView, and scroll
+     * to the newest one if the user was following the conversation.
+     */
+    private void flushTranscript() {
+        if (pendingEntries.isEmpty()) {
+            return;
+        }
+        boolean follow = pendingJumpToEnd || isFollowingTranscript();
+        if (pendingJumpToEnd) {
+            transcript.jumpToEnd();
+            pendingJumpToEnd = false;
+        }
+        transcript.appendAll(pendingEntries);
+        pendingEntries.clear();
+        if (follow) {
+            textOutput.scrollTo(transcript.getItems().size() - 1);
         }
-        textOutput.getChildren().add(message);
     }
 
     /**
@@ -228,8 +360,8 @@ public class GUIController implements ChatListener {
         connectBtn.setText("Connecting...");
         connectBtn.setDisable(true);
 
-        // Run the connection in a new background thread to avoid GUI freeze
-        Thread connThread = new Thread(() -> {
+        // Run the connection in the background to avoid GUI freeze
+        ioExecutor.execute(() -> {
             boolean connected = tcpClient.connect(host, Integer.parseInt(port));
             if (connected) {
                 // Connection established, start listening processes
@@ -239,7 +371,6 @@ public class GUIController implements ChatListener {
             }
             updateButtons(connected);
         });
-        connThread.start();
     }
 
     /**
@@ -283,39 +414,11 @@ public class GUIController implements ChatListener {
     ///////////////////////////////////////////////////////////////////////
 
     /**
-     * Start a new thread that will poll the server for currently active users
+     * Start polling the server for currently active users
      */
     private void startUserPolling() {
-        // Make sure we have just one polling thread, not duplicates
-        if (userPollThread == null) {
-
-            userPollThread = new Thread(() -> {
-                ////////////////////////////////////////////////////////////////
-                // This block of code will run in the polling thread
-                ////////////////////////////////////////////////////////////////
-                long threadId = Thread.currentThread().getId();
-                System.out.println("Started user polling in Thread "
-                        + threadId);
-                while (tcpClient.isConnectionActive()) {
-                    // TcpClient will ask server to send the latest user list. The response from the server will
-                    // not be handled here! Here we only ask for update and go to sleep. Then repeat.
-                    tcpClient.refreshUserList();
-                    try {
-                        sleep(3000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                System.out.println("User polling thread " + threadId + " exiting...");
-                // Make sure we start the thread again next time
-                userPollThread = null;
-                ////////////////////////////////////////////////////////////////
-                // EOF polling thread code
-                ////////////////////////////////////////////////////////////////
-            });
-
-            userPollThread.start();
-        }
+        // The poller makes sure there is just one polling task, not duplicates
+        userPoller.start();
     }
 
     /**
@@ -329,8 +432,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onLoginResult(boolean success, String errMsg) {
-        // Update the GUI. Do it on the GUI thread with Platform.runLater()
-        Platform.runLater(() -> {
+        // Update the GUI. Do it on the GUI thread, together with the other pending updates
+        guiUpdates.post(() -> {
             if (success) {
                 serverStatus.setText("Server - login successful");
             } else {
@@ -348,7 +451,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onMessageReceived(TextMessage message) {
         // Show the message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(false, message, false));
+        guiUpdates.post(() -> addMsgToGui(false, message, false));
     }
 
     /**
@@ -360,7 +463,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onMessageError(String errMsg) {
         // Show error message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(true, new TextMessage("err", false,
+        guiUpdates.post(() -> addMsgToGui(true, new TextMessage("err", false,
                 "Error: " + errMsg), true));
     }
 
@@ -372,21 +475,33 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onUserList(String[] usernames) {
+        // The user panel is updated with the changes only, in onUsersJoined() and onUsersLeft(),
+        // which have been called already for this reply. Only the poll interval is updated
+        userPoller.userListReceived();
+    }
+
+    /**
+     * This method is called when users appear in the user list who were not in the previous one
+     *
+     * @param usernames The new users
+     */
+    @Override
+    public void onUsersJoined(String[] usernames) {
         // Update the user list. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                // Set an "on-click" listener for the item in the user list - allow to send a private message
-                text.setOnMouseClicked(event -> {
-                    textInput.setText("/privmsg " + user + " ");
-                    textInput.requestFocus();
-                    textInput.end();
-                });
-                userList.getChildren().add(text);
-            }
-        });
+        guiUpdates.post(() -> users.addAll(usernames));
+        userPoller.listChanged();
+    }
+
+    /**
+     * This method is called when users of the previous user list are gone
+     *
+     * @param usernames The users who left
+     */
+    @Override
+    public void onUsersLeft(String[] usernames) {
+        // Update the user list. Do it on the GUI thread.
+        guiUpdates.post(() -> users.removeAll(usernames));
+        userPoller.listChanged();
     }
 
     /**
@@ -398,7 +513,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onSupportedCommands(String[] commands) {
         // Show the commands in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> {
+        guiUpdates.post(() -> {
             StringBuilder listOfCommands = new StringBuilder(
                     "Commands available: ");
             for (String c : commands) {
@@ -419,7 +534,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onCommandError(String errMsg) {
         // Shoe error message. Do it on the GUI thread.
-        Platform.runLater(() -> {
+        guiUpdates.post(() -> {
             TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
             addMsgToGui(true, msg, true);
         });
@@ -431,7 +546,22 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onDisconnect() {
-        System.out.println("Socket closed by the remote end");
+        ClientLog.info("Connection to the server closed");
         updateButtons(false);
+        userPoller.stop();
+        // The next connection reports all its users as joined
+        guiUpdates.post(users::clear);
+    }
+
+    /**
+     * This method is called when the connection was lost and has been re-established
+     * automatically by the TcpClient.
+     */
+    @Override
+    public void onReconnected() {
+        ClientLog.info("Connection to the server re-established");
+        updateButtons(true);
+        // The polling stopped when the connection was lost
+        startUserPolling();
     }
 }
\ No newline at end of file
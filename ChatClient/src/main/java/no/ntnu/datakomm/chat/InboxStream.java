@@ -0,0 +1,265 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages of the server-side inbox, read as a stream: see {@link TCPClient#readInbox()}.
+ * Messages are handed from the thread reading the socket to the consumer through a buffer of fixed
+ * size. When the buffer is full, the client stops reading the socket until the consumer has taken
+ * some messages, so the server (through TCP flow control) never gets ahead of the consumer by
+ * more than the buffer and the socket buffers, no matter how many messages the inbox holds.
+ * <p>
+ * Iterate on one thread only. Close the stream to stop early: the rest of the inbox is then read
+ * from the socket and thrown away.
+ */
+public class InboxStream implements Iterator<TextMessage>, AutoCloseable {
+
+    private final ArrayDeque<TextMessage> buffer;
+    private final int capacity;
+    // How long the consumer waits for the next message before giving up
+    private final long timeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // Number of messages the server announced, -1 until the "inbox <count>" reply arrives, and the
+    // number received so far. Guarded by lock
+    private int expected = -1;
+    private int received = 0;
+    // Set by the consumer to stop early. Guarded by lock
+    private boolean closed = false;
+    // Why the stream ended before all the messages arrived. Guarded by lock
+    private IOException failure;
+    // Called when the buffer has room again, if the reader had to stop. Guarded by lock
+    private Runnable resume;
+
+    /**
+     * @param capacity      Maximum number of messages waiting for the consumer
+     * @param timeoutMillis How long hasNext() waits for the server
+     */
+    InboxStream(int capacity, long timeoutMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid inbox buffer size: " + capacity);
+        }
+        this.capacity = capacity;
+        this.buffer = new ArrayDeque<>(capacity);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * The server announced the number of messages in the inbox.
+     *
+     * @param count Number of messages which follow
+     */
+    void start(int count) {
+        lock.lock();
+        try {
+            expected = count;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return True if the count has been announced and more messages are still to come
+     */
+    boolean isExpecting() {
+        lock.lock();
+        try {
+            return failure == null && expected >= 0 && received < expected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return True until all the messages have been received or the stream has failed
+     */
+    boolean isActive() {
+        lock.lock();
+        try {
+            return failure == null && (expected < 0 || received < expected);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a received message, waiting for room in the buffer if needed. After close(), the
+     * message is only counted.
+     *
+     * @param message The message
+     */
+    void put(TextMessage message) {
+        lock.lock();
+        try {
+            while (!closed && buffer.size() >= capacity) {
+                notFull.awaitUninterruptibly();
+            }
+            received++;
+            if (!closed) {
+                buffer.add(message);
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check if the reader can go on, for readers which must not wait (the NIO selector thread).
+     *
+     * @param resume Called (on the consumer thread) when the buffer has room again, only if this
+     *               method returns true
+     * @return True if the buffer is full and the reader must stop until resume is called
+     */
+    boolean pauseWhenFull(Runnable resume) {
+        lock.lock();
+        try {
+            if (closed || buffer.size() < capacity) {
+                return false;
+            }
+            this.resume = resume;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The stream ends without the rest of the messages, for example because the connection closed.
+     *
+     * @param cause The reason
+     */
+    void fail(IOException cause) {
+        Runnable r;
+        lock.lock();
+        try {
+            if (failure == null && (expected < 0 || received < expected)) {
+                failure = cause;
+            }
+            r = takeResume();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (r != null) {
+            r.run();
+        }
+    }
+
+    /**
+     * @return Number of messages the server announced, or -1 if the count has not arrived yet
+     */
+    public int getExpectedCount() {
+        lock.lock();
+        try {
+            return expected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the next message is available or the inbox has been read completely.
+     *
+     * @return True if there is another message
+     * @throws UncheckedIOException When the connection is lost or the server does not answer in
+     *                              time
+     */
+    @Override
+    public boolean hasNext() {
+        lock.lock();
+        try {
+            long left = timeoutNanos;
+            while (buffer.isEmpty() && !closed && failure == null
+                    && (expected < 0 || received < expected)) {
+                if (left <= 0) {
+                    throw new UncheckedIOException(new IOException("The server did not send the inbox in time"));
+                }
+                try {
+                    left = notEmpty.awaitNanos(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new IOException("Interrupted while reading the inbox"));
+                }
+            }
+            if (!buffer.isEmpty()) {
+                return true;
+            }
+            if (failure != null && !closed) {
+                throw new UncheckedIOException(failure);
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The next message of the inbox
+     * @throws NoSuchElementException When all messages have been read
+     */
+    @Override
+    public TextMessage next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        TextMessage message;
+        Runnable r = null;
+        lock.lock();
+        try {
+            message = buffer.poll();
+            notFull.signal();
+            // Let a stopped reader go on when half of the buffer is free, not for every message
+            if (buffer.size() <= capacity / 2) {
+                r = takeResume();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (r != null) {
+            r.run();
+        }
+        return message;
+    }
+
+    /**
+     * Stop reading the inbox. Messages still to come are thrown away.
+     */
+    @Override
+    public void close() {
+        Runnable r;
+        lock.lock();
+        try {
+            closed = true;
+            buffer.clear();
+            r = takeResume();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (r != null) {
+            r.run();
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private Runnable takeResume() {
+        Runnable r = resume;
+        resume = null;
+        return r;
+    }
+}
@@ -0,0 +1,99 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with fixed buckets. Bucket i counts the values from 2^(i-1) up to
+ * (but not including) 2^i microseconds, bucket 0 the values below one microsecond. Recording a
+ * value is a few atomic additions and never allocates; percentiles are approximate (the upper
+ * bound of the bucket).
+ */
+class LatencyHistogram {
+
+    // 2^31 microseconds is more than half an hour, longer values go into the last bucket
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong minNanos = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * Record one value.
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        sumNanos.add(nanos);
+        if (nanos > maxNanos.get()) {
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+        if (nanos < minNanos.get()) {
+            minNanos.accumulateAndGet(nanos, Math::min);
+        }
+    }
+
+    /**
+     * @return Number of recorded values
+     */
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return Average of the recorded values in microseconds, 0 if there are none
+     */
+    double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : sumNanos.sum() / 1000.0 / n;
+    }
+
+    /**
+     * @return The smallest recorded value in microseconds, 0 if there are none
+     */
+    long getMinMicros() {
+        long min = minNanos.get();
+        return min == Long.MAX_VALUE ? 0 : min / 1000;
+    }
+
+    /**
+     * @return The largest recorded value in microseconds
+     */
+    long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    /**
+     * Find the value below which the given fraction of the recorded values lies.
+     *
+     * @param fraction For example 0.99 for the 99th percentile
+     * @return Upper bound of the bucket holding the percentile, in microseconds, 0 if no values
+     */
+    long getPercentileMicros(double fraction) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+}
@@ -0,0 +1,261 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Splits the bytes received from the server into lines. The bytes are kept in one reusable
+ * buffer, the framer scans it for '\n' and hands out each complete line as a {@link ServerLine}
+ * view into the buffer - no String or array is created per line.
+ * <p>
+ * After the switch to binary framing (see {@link BinaryProtocol}) the framer reads
+ * length-prefixed frames instead. The view of a frame points to its fields in the buffer and
+ * gives the same command word and arguments as the equivalent text line, so the same response
+ * handlers serve both framings. A frame longer than {@link #MAX_FRAME_LENGTH} is rejected as
+ * malformed, so a corrupted length can't make the buffer grow without bounds.
+ */
+class LineFramer {
+
+    // Initial size of the receive buffer. It grows if a single line does not fit in it
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    // Bytes buf[readPos, writePos) have been received but not yet taken as lines
+    private int readPos = 0;
+    private int writePos = 0;
+    // Where the search for the next '\n' continues, so that no byte is scanned twice
+    private int scanPos = 0;
+
+    private final ServerLine line;
+
+    // Largest binary frame accepted, in bytes
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    // Command word used for frames with an unknown command id
+    private static final byte[] UNKNOWN_WORD = "unknown".getBytes();
+    // True after the switch to binary framing
+    private boolean binary = false;
+    // Index after the last varint read by readVarint()
+    private int varintEnd;
+
+    /**
+     * @param charset Charset of the text lines
+     */
+    LineFramer(Charset charset) {
+        line = new ServerLine(charset);
+    }
+
+    /**
+     * Take the next complete line from the buffer.
+     *
+     * @return The line view (valid until the next call), or null when no complete line has been
+     * received yet. Empty lines are skipped
+     * @throws IOException When a binary frame is malformed
+     */
+    ServerLine nextLine() throws IOException {
+        if (binary) {
+            return nextFrame();
+        }
+        while (true) {
+            int newline = -1;
+            for (int i = scanPos; i < writePos; i++) {
+                if (buf[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0) {
+                scanPos = writePos;
+                return null;
+            }
+            int lineStart = readPos;
+            int lineEnd = newline;
+            // Accept both "\n" and "\r\n" line endings
+            if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            readPos = newline + 1;
+            scanPos = readPos;
+            if (lineEnd > lineStart) {
+                line.set(buf, lineStart, lineEnd);
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Take the next complete binary frame from the buffer. The view points to the fields in the
+     * buffer, nothing is copied.
+     *
+     * @return The line view (valid until the next call), or null when no complete frame has been
+     * received yet
+     * @throws IOException When the frame is malformed or longer than MAX_FRAME_LENGTH
+     */
+    private ServerLine nextFrame() throws IOException {
+        if (readPos >= writePos) {
+            return null;
+        }
+        int pos = readPos;
+        int id = buf[pos++] & 0xff;
+        int count = readVarint(pos);
+        if (count < 0) {
+            return null;
+        }
+        // Every field takes at least one byte, so this also limits the number of fields
+        if (count > MAX_FRAME_LENGTH) {
+            throw new IOException("Binary frame with too many fields: " + count);
+        }
+        pos = varintEnd;
+        byte[] word = BinaryProtocol.wordOf(id);
+        line.setFrame(buf, word != null ? word : UNKNOWN_WORD);
+        for (int i = 0; i < count; i++) {
+            int length = readVarint(pos);
+            if (length < 0) {
+                return null;
+            }
+            // The varint is never negative; checking the length before adding it to pos also
+            // keeps the sum from overflowing
+            if (length > MAX_FRAME_LENGTH - (varintEnd - readPos)) {
+                throw new IOException("Binary frame longer than " + MAX_FRAME_LENGTH + " bytes");
+            }
+            pos = varintEnd + length;
+            if (pos > writePos) {
+                return null;
+            }
+            line.addField(varintEnd, pos);
+        }
+        readPos = pos;
+        scanPos = pos;
+        return line;
+    }
+
+    /**
+     * Read an unsigned varint from the buffer. The index after it is stored in varintEnd.
+     *
+     * @param pos Index of the first byte
+     * @return The value, or -1 if the varint is not complete yet
+     * @throws IOException When the varint is longer than 5 bytes or larger than an int
+     */
+    private int readVarint(int pos) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos >= writePos) {
+                return -1;
+            }
+            byte b = buf[pos++];
+            if (shift == 28 && (b & 0x78) != 0) {
+                // The value would not fit in a non-negative int
+                break;
+            }
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                varintEnd = pos;
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in binary frame");
+    }
+
+    /**
+     * Switch between text lines and binary frames. The bytes already in the buffer after the
+     * last line handed out are read in the new framing.
+     *
+     * @param binary True for binary frames
+     */
+    void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Append received bytes to the buffer.
+     *
+     * @param data Bytes received from the socket. All of them are consumed
+     */
+    void feed(ByteBuffer data) {
+        int n = data.remaining();
+        makeRoom(n);
+        data.get(buf, writePos, n);
+        writePos += n;
+    }
+
+    /**
+     * Append received bytes to the buffer.
+     *
+     * @param data   Array holding the received bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     */
+    void feed(byte[] data, int offset, int length) {
+        makeRoom(length);
+        System.arraycopy(data, offset, buf, writePos, length);
+        writePos += length;
+    }
+
+    /**
+     * Read bytes from a stream straight into the buffer. Blocks until at least one byte is
+     * available.
+     *
+     * @param in The stream to read from
+     * @return Number of bytes read, -1 when the end of the stream has been reached
+     * @throws IOException When reading fails
+     */
+    int readFrom(InputStream in) throws IOException {
+        makeRoom(1);
+        int n = in.read(buf, writePos, buf.length - writePos);
+        if (n > 0) {
+            writePos += n;
+        }
+        return n;
+    }
+
+    /**
+     * Take out the bytes received after the last line handed out, for example because they have
+     * to be decompressed first. The framer is empty afterwards.
+     *
+     * @return The unconsumed bytes
+     */
+    byte[] takeUnread() {
+        byte[] unread = Arrays.copyOfRange(buf, readPos, writePos);
+        readPos = 0;
+        writePos = 0;
+        scanPos = 0;
+        return unread;
+    }
+
+    /**
+     * Forget all buffered bytes and go back to text lines, for example when a new connection is
+     * opened.
+     */
+    void reset() {
+        binary = false;
+        readPos = 0;
+        writePos = 0;
+        scanPos = 0;
+    }
+
+    /**
+     * Make sure there is space for n more bytes at the end of the buffer. Already consumed bytes
+     * are dropped by moving the unconsumed ones to the start; the buffer grows only if a single
+     * line is longer than the buffer.
+     *
+     * @param n Number of bytes we want to append
+     */
+    private void makeRoom(int n) {
+        if (writePos + n <= buf.length) {
+            return;
+        }
+        int unread = writePos - readPos;
+        byte[] target = buf;
+        if (unread + n > buf.length) {
+            target = new byte[Math.max(buf.length * 2, unread + n)];
+        }
+        System.arraycopy(buf, readPos, target, 0, unread);
+        buf = target;
+        scanPos -= readPos;
+        writePos = unread;
+        readPos = 0;
+    }
+}
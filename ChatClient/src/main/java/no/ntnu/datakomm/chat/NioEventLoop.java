@@ -0,0 +1,394 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single selector thread which services the sockets of many TCPClient instances running in
+ * non-blocking (NIO) mode. All reads and writes happen on this thread; other threads hand work
+ * over to it through a task queue and wake the selector up.
+ */
+class NioEventLoop implements Runnable {
+
+    // How many bytes we try to read from a socket in one go
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // The loop shared by all NIO clients in this JVM, created on first use
+    private static NioEventLoop shared;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only the selector thread uses this buffer, hence it can be shared between all connections
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Thread thread;
+
+    /**
+     * Receives the events of one registered socket. All methods are called on the selector thread.
+     */
+    interface Handler {
+
+        /**
+         * Called when new bytes have been read from the socket. The buffer is reused after the
+         * method returns, hence all the bytes must be consumed (or copied) before returning.
+         *
+         * @param data Buffer with the received bytes, ready to be read
+         */
+        void onRead(ByteBuffer data);
+
+        /**
+         * Called once when the remote end has closed the socket, or the socket failed.
+         */
+        void onClosed();
+    }
+
+    /**
+     * Get the event loop shared by all NIO clients. The selector thread is started on first call.
+     *
+     * @return The shared event loop
+     * @throws IOException When the selector could not be opened
+     */
+    static synchronized NioEventLoop getShared() throws IOException {
+        if (shared == null) {
+            shared = new NioEventLoop();
+        }
+        return shared;
+    }
+
+    private NioEventLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "chat-nio-selector");
+        // The selector must never keep the JVM alive on its own
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Register a connected socket with the loop. Reading does not start until
+     * {@link Connection#startReading()} is called.
+     *
+     * @param channel  A connected socket channel
+     * @param handler  Handler receiving the events of this socket
+     * @param outbound Queue of commands to write to this socket
+     * @return The connection used to send bytes, start reading and close the socket
+     * @throws IOException When the channel could not be switched to non-blocking mode
+     */
+    Connection register(SocketChannel channel, Handler handler, OutboundQueue outbound)
+            throws IOException {
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, handler, outbound);
+        connection.execute(() -> {
+            try {
+                connection.key = channel.register(selector, 0, connection);
+                connection.updateInterest();
+            } catch (ClosedChannelException e) {
+                connection.closeAndNotify();
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @param task The task to run
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * The selector loop. Runs until the JVM exits. The thread is shared by all NIO clients, so a
+     * failure while handling one connection only closes that connection; the loop goes on with
+     * the others.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                ClientLog.error("Selector failed: " + e.getMessage());
+                continue;
+            }
+            runTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                handleKey(key);
+            }
+        }
+    }
+
+    /**
+     * Read from and write to the socket of a selected key.
+     *
+     * @param key The key
+     */
+    private void handleKey(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (!key.isValid()) {
+                connection.closeAndNotify();
+                return;
+            }
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flushOutbox();
+            }
+        } catch (RuntimeException e) {
+            connection.fail(e);
+        }
+    }
+
+    /**
+     * Run all the tasks handed over by other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ClientLog.error("Selector task failed", e);
+            }
+        }
+    }
+
+    /**
+     * One socket registered with the event loop.
+     */
+    class Connection {
+        private final SocketChannel channel;
+        private final Handler handler;
+        // Commands waiting to be written to the socket, in order
+        private final OutboundQueue outbound;
+        // The batch currently being written; the socket may accept it in several parts
+        private ByteBuffer writing;
+        // True while a flush task is queued, so a burst of sends schedules only one flush
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private SelectionKey key;
+        private boolean reading = false;
+        private volatile boolean closed = false;
+
+        private Connection(SocketChannel channel, Handler handler, OutboundQueue outbound) {
+            this.channel = channel;
+            this.handler = handler;
+            this.outbound = outbound;
+        }
+
+        /**
+         * Start delivering incoming bytes to the handler.
+         */
+        void startReading() {
+            execute(() -> {
+                reading = true;
+                updateInterest();
+            });
+        }
+
+        /**
+         * Stop delivering incoming bytes, the socket is not read until resumeReading() is called.
+         * Must be called on the selector thread, from the handler.
+         */
+        void pauseReading() {
+            reading = false;
+            updateInterest();
+        }
+
+        /**
+         * Start delivering incoming bytes again after pauseReading(). May be called from any
+         * thread.
+         *
+         * @param first Run on the selector thread before reading is resumed, for example to handle
+         *              data kept back when reading was paused. It may pause reading again
+         */
+        void resumeReading(Runnable first) {
+            execute(() -> {
+                reading = true;
+                if (!closed) {
+                    first.run();
+                }
+                updateInterest();
+            });
+        }
+
+        /**
+         * Ask the selector thread to write what is pending in the outbound queue. All commands
+         * queued until the selector gets to it are written as one batch; the calling thread never
+         * blocks.
+         */
+        void requestFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                execute(this::flushOutbox);
+            }
+        }
+
+        /**
+         * Close the connection. Commands still pending are written if the socket accepts them right
+         * away. The handler is not notified, because the close was requested locally.
+         */
+        void close() {
+            close(null);
+        }
+
+        /**
+         * Close the connection like close(), then run a task on the selector thread, for example
+         * to free what the pending writes still needed. The task also runs if the connection has
+         * been closed already, by a remote close or an error.
+         *
+         * @param afterClose Run once the channel is closed, can be null
+         */
+        void close(Runnable afterClose) {
+            if (!closed) {
+                closed = true;
+                execute(() -> {
+                    try {
+                        closeChannel();
+                    } finally {
+                        if (afterClose != null) {
+                            afterClose.run();
+                        }
+                    }
+                });
+            } else if (afterClose != null) {
+                // Queued behind the close in progress, if any, on the same thread
+                execute(afterClose);
+            }
+        }
+
+        /**
+         * Run a task of this connection on the selector thread. If it fails, only this connection
+         * is closed.
+         *
+         * @param task The task to run
+         */
+        private void execute(Runnable task) {
+            NioEventLoop.this.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            });
+        }
+
+        /**
+         * Read all available bytes and pass them to the handler.
+         */
+        private void read() {
+            try {
+                int n;
+                do {
+                    readBuffer.clear();
+                    n = channel.read(readBuffer);
+                    if (n > 0) {
+                        readBuffer.flip();
+                        handler.onRead(readBuffer);
+                    }
+                } while (n > 0 && reading && !closed);
+                if (n < 0) {
+                    closeAndNotify();
+                }
+            } catch (IOException e) {
+                closeAndNotify();
+            }
+        }
+
+        /**
+         * Write batches from the outbound queue as long as the socket accepts them. If something
+         * is left, wait for the socket to become writable again.
+         */
+        private void flushOutbox() {
+            flushScheduled.set(false);
+            if (key == null || !channel.isOpen()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (writing == null || !writing.hasRemaining()) {
+                        writing = outbound.nextBatch();
+                        if (!writing.hasRemaining()) {
+                            break;
+                        }
+                    }
+                    channel.write(writing);
+                    if (writing.hasRemaining()) {
+                        // The socket send buffer is full
+                        break;
+                    }
+                }
+                updateInterest();
+            } catch (IOException e) {
+                closeAndNotify();
+            }
+        }
+
+        /**
+         * Update the selection interest according to whether we read and have something to write.
+         */
+        private void updateInterest() {
+            if (key != null && key.isValid()) {
+                int ops = reading && !closed ? SelectionKey.OP_READ : 0;
+                if ((writing != null && writing.hasRemaining()) || !outbound.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+        }
+
+        /**
+         * Write what the socket accepts of the pending commands and close the channel. Runs on the
+         * selector thread.
+         */
+        private void closeChannel() {
+            flushOutbox();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ClientLog.error("Could not close socket channel: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Close the connection because handling it failed unexpectedly, for example a bug in the
+         * handler or a malformed message.
+         *
+         * @param e The cause
+         */
+        private void fail(RuntimeException e) {
+            ClientLog.error("Closing the connection after an unexpected error", e);
+            closeAndNotify();
+        }
+
+        /**
+         * Close the socket because of a remote close or an error and notify the handler once.
+         */
+        private void closeAndNotify() {
+            if (!closed) {
+                closed = true;
+                try {
+                    closeChannel();
+                } catch (RuntimeException e) {
+                    ClientLog.error("Could not close socket channel", e);
+                }
+                try {
+                    handler.onClosed();
+                } catch (RuntimeException e) {
+                    ClientLog.error("Connection close handler failed", e);
+                }
+            }
+        }
+    }
+}
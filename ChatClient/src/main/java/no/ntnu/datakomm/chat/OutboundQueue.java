@@ -0,0 +1,166 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Commands waiting to be written to the server. Any thread may add encoded commands without
+ * blocking; one writer (the blocking writer thread or the NIO selector thread) takes everything
+ * that is pending and coalesces it into a single buffer, so that a burst of commands costs one
+ * socket write instead of one write per command.
+ * <p>
+ * Compression can be switched on at a given point of the stream: commands queued before the
+ * switch are sent as they are, everything after it is compressed batch by batch.
+ */
+class OutboundQueue {
+
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    // Number of bytes in the pending commands
+    private final AtomicInteger pendingBytes = new AtomicInteger();
+    private final int maxBatchBytes;
+    // The batch buffer is reused for every write, it's only touched by the writer
+    private final ByteBuffer batch;
+    // The writer thread parked in awaitData(), if any
+    private volatile Thread waiter;
+    private volatile boolean closed = false;
+
+    // Marks the point in the queue where compression starts. Compared by identity
+    private static final byte[] START_COMPRESSION = new byte[0];
+    // The codec to use from the marker on, and the codec in use. compressor is only touched by
+    // the writer
+    private volatile DeflateCodec pendingCompressor;
+    private DeflateCodec compressor;
+
+    /**
+     * @param maxBatchBytes Maximum number of bytes written in one batch. A single command longer
+     *                      than this is written alone
+     */
+    OutboundQueue(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        this.batch = ByteBuffer.allocate(maxBatchBytes);
+    }
+
+    /**
+     * Add an encoded command (with its newline) to the end of the queue.
+     *
+     * @param command The bytes to send
+     */
+    void add(byte[] command) {
+        pending.add(command);
+        pendingBytes.addAndGet(command.length);
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * Compress everything added after this call. Commands already in the queue are sent
+     * uncompressed. Must be called by the thread which added the last uncompressed command, with
+     * no other thread adding commands meanwhile.
+     *
+     * @param codec The codec compressing the batches
+     */
+    void startCompression(DeflateCodec codec) {
+        pendingCompressor = codec;
+        add(START_COMPRESSION);
+    }
+
+    /**
+     * @return True when nothing is waiting to be written
+     */
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return Number of bytes waiting to be written
+     */
+    int getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Wait until there is something to write, then linger for up to the given time so that more
+     * commands can join the batch. Lingering stops early when a full batch is pending. Used by the
+     * blocking writer thread.
+     *
+     * @param maxLingerNanos How long to wait for more commands after the first one, 0 for no wait
+     * @return False when the queue has been closed and everything has been written
+     */
+    boolean awaitData(long maxLingerNanos) {
+        waiter = Thread.currentThread();
+        while (pending.isEmpty()) {
+            if (closed) {
+                return false;
+            }
+            LockSupport.park(this);
+        }
+        if (maxLingerNanos > 0) {
+            long deadline = System.nanoTime() + maxLingerNanos;
+            long left;
+            while (!closed && pendingBytes.get() < maxBatchBytes
+                    && (left = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, left);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take pending commands, in order, into one buffer of at most maxBatchBytes bytes. The
+     * returned buffer must be completely written before this method is called again.
+     *
+     * @return Buffer ready to be written, empty if nothing is pending
+     */
+    ByteBuffer nextBatch() {
+        batch.clear();
+        byte[] head = pending.peek();
+        if (head == START_COMPRESSION) {
+            pending.poll();
+            compressor = pendingCompressor;
+            head = pending.peek();
+        }
+        if (head != null && head.length > maxBatchBytes) {
+            // Too long for the batch buffer, send it alone
+            pending.poll();
+            pendingBytes.addAndGet(-head.length);
+            return compressed(ByteBuffer.wrap(head));
+        }
+        // A batch never crosses the start of compression: the marker ends it
+        while ((head = pending.peek()) != null && head != START_COMPRESSION
+                && head.length <= batch.remaining()) {
+            pending.poll();
+            pendingBytes.addAndGet(-head.length);
+            batch.put(head);
+        }
+        batch.flip();
+        return compressed(batch);
+    }
+
+    /**
+     * @param data A batch to send
+     * @return The batch itself, or its compressed form once compression has started
+     */
+    private ByteBuffer compressed(ByteBuffer data) {
+        if (compressor == null || !data.hasRemaining()) {
+            return data;
+        }
+        return compressor.compress(data);
+    }
+
+    /**
+     * Close the queue: a writer waiting in awaitData() returns once everything pending has been
+     * written.
+     */
+    void close() {
+        closed = true;
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * A message to be sent with {@link TCPClient#sendBatch(java.util.List)}: either a public message
+ * or a private message to one user.
+ */
+public class OutgoingMessage {
+
+    private final String recipient;
+    private final String text;
+
+    /**
+     * @param recipient Username of the recipient, or null for a public message
+     * @param text      Text of the message
+     */
+    public OutgoingMessage(String recipient, String text) {
+        this.recipient = recipient;
+        this.text = text;
+    }
+
+    /**
+     * @param text Text of the message
+     * @return A public message
+     */
+    public static OutgoingMessage publicMessage(String text) {
+        return new OutgoingMessage(null, text);
+    }
+
+    /**
+     * @param recipient Username of the recipient
+     * @param text      Text of the message
+     * @return A private message
+     */
+    public static OutgoingMessage privateMessage(String recipient, String text) {
+        return new OutgoingMessage(recipient, text);
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public boolean isPrivate() {
+        return recipient != null;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Check that the message can be sent as one command.
+     *
+     * @param newlineAllowed True if the text may contain newlines (binary framing)
+     * @return Why the message can't be sent, or null if it can
+     */
+    String validate(boolean newlineAllowed) {
+        if (text == null) {
+            return "No text";
+        }
+        if (recipient != null && (recipient.isEmpty() || recipient.indexOf(' ') >= 0
+                || recipient.indexOf('\n') >= 0)) {
+            return "Invalid recipient: " + recipient;
+        }
+        if (!newlineAllowed && text.indexOf('\n') >= 0) {
+            return "A message can't contain a newline";
+        }
+        return null;
+    }
+
+    /**
+     * @return The command sending this message
+     */
+    String toCommand() {
+        return recipient != null ? "privmsg " + recipient + " " + text : "msg " + text;
+    }
+
+    @Override
+    public String toString() {
+        return (recipient != null ? "to " + recipient + ": " : "public: ") + text;
+    }
+}
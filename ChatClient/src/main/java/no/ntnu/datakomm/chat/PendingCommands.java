@@ -0,0 +1,84 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * All commands of one connection which are still waiting for their reply, whatever the type of
+ * the reply, in the order they were sent. Each {@link ReplyQueue} matches the replies of its own
+ * type; this queue is needed for the "cmderr" reply, which can answer any command: it belongs to
+ * the oldest command still waiting.
+ * <p>
+ * Commands answered through their ReplyQueue are only marked as answered, and dropped once they
+ * reach the head of this queue. Since the server answers in order, that is normally at once.
+ */
+class PendingCommands {
+
+    private final Queue<ReplyQueue.Entry> entries = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Register a command which has just been queued for sending.
+     *
+     * @param entry The command, also added to the ReplyQueue of its reply type
+     */
+    void add(ReplyQueue.Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * A "cmderr" reply arrived: fail the oldest command still waiting, whatever its type.
+     *
+     * @param errMsg The error message from the server
+     * @return True if a waiting command was found
+     */
+    boolean failOldest(String errMsg) {
+        ReplyQueue.Entry e;
+        while ((e = entries.poll()) != null) {
+            if (e.owner.failEntry(e, errMsg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the answered commands at the head of the queue. An abandoned command at the head is
+     * dropped too, from its ReplyQueue as well, if a command sent after it has been answered: the
+     * server skipped it, its reply will never come.
+     */
+    void prune() {
+        ReplyQueue.Entry e;
+        while ((e = entries.peek()) != null) {
+            if (e.isAnswered()) {
+                entries.remove(e);
+            } else if (e.isAbandoned() && isLaterAnswered()) {
+                e.owner.discard(e);
+                entries.remove(e);
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return True if a command after the head of the queue has been answered
+     */
+    private boolean isLaterAnswered() {
+        boolean head = true;
+        for (ReplyQueue.Entry e : entries) {
+            if (!head && e.isAnswered()) {
+                return true;
+            }
+            head = false;
+        }
+        return false;
+    }
+
+    /**
+     * Forget all commands, for example because the connection was closed. Their ReplyQueues are
+     * failed separately.
+     */
+    void clear() {
+        entries.clear();
+    }
+}
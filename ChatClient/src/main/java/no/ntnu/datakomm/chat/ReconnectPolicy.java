@@ -0,0 +1,66 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Describes how a TCPClient tries to re-establish a connection that was lost: exponential backoff
+ * between the attempts, with random jitter so that many clients dropped at the same time don't
+ * all reconnect at the same moment.
+ */
+public class ReconnectPolicy {
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+
+    /**
+     * @param initialDelayMillis Delay before the first attempt
+     * @param maxDelayMillis     The delay never grows above this
+     * @param multiplier         The delay is multiplied by this after every failed attempt
+     * @param jitter             Fraction (0 to 1) of the delay which is randomized. With 0.5 the
+     *                           actual delay is between 50% and 100% of the computed one
+     * @param maxAttempts        Give up after this many failed attempts
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier,
+                           double jitter, int maxAttempts) {
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis || multiplier < 1
+                || jitter < 0 || jitter > 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid reconnect policy");
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return A policy starting at 0.5 seconds, doubling up to 30 seconds, with 50% jitter and at
+     * most 10 attempts
+     */
+    public static ReconnectPolicy defaultPolicy() {
+        return new ReconnectPolicy(500, 30000, 2.0, 0.5, 10);
+    }
+
+    /**
+     * Compute how long to wait before an attempt.
+     *
+     * @param attempt Number of the attempt, starting from 1
+     * @return Delay in milliseconds
+     */
+    public long getDelayMillis(int attempt) {
+        double delay = initialDelayMillis * Math.pow(multiplier, attempt - 1);
+        delay = Math.min(delay, maxDelayMillis);
+        double randomPart = delay * jitter * ThreadLocalRandom.current().nextDouble();
+        return Math.round(delay - randomPart);
+    }
+
+    /**
+     * @return Maximum number of attempts before giving up
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
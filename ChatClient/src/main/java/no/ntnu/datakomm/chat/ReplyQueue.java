@@ -0,0 +1,205 @@
+package no.ntnu.datakomm.chat;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Commands sent to the server which are still waiting for their reply. The chat server answers
+ * the commands of one connection in the order they were sent, so the first reply of a type (for
+ * example "msgok" or "msgerr") belongs to the oldest command still waiting for such a reply.
+ * <p>
+ * Every command expecting a reply must be registered, also when nobody waits for the result,
+ * otherwise the replies would be matched with the wrong commands. The commands are also kept in
+ * the {@link PendingCommands} of the connection, which "cmderr" replies are matched against.
+ */
+class ReplyQueue {
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final PendingCommands pending;
+
+    /**
+     * A command waiting for its reply.
+     */
+    static class Entry {
+        // The queue of the reply type
+        final ReplyQueue owner;
+        // When the command was queued for sending
+        final long sentNanos;
+        // Completed when the reply arrives, can be null when nobody waits for the result
+        final CompletableFuture<Duration> future;
+        // Set by whichever reply (or failure) answers the command first
+        private final AtomicBoolean answered = new AtomicBoolean(false);
+        // Set when nobody waits for the reply any more. The command still takes its late reply
+        private volatile boolean abandoned = false;
+
+        Entry(ReplyQueue owner, long sentNanos, CompletableFuture<Duration> future) {
+            this.owner = owner;
+            this.sentNanos = sentNanos;
+            this.future = future;
+        }
+
+        boolean isAnswered() {
+            return answered.get();
+        }
+
+        boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * @return True if this call answered the command, false if it was answered before
+         */
+        boolean answer() {
+            return answered.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * @param pending All the commands of the connection waiting for a reply, of any type
+     */
+    ReplyQueue(PendingCommands pending) {
+        this.pending = pending;
+    }
+
+    /**
+     * Register a command which has just been queued for sending. Must be called in the same order
+     * as the commands are written to the socket.
+     *
+     * @param future Completed with the round-trip time when the reply arrives, can be null
+     */
+    void expect(CompletableFuture<Duration> future) {
+        Entry e = new Entry(this, System.nanoTime(), future);
+        entries.add(e);
+        pending.add(e);
+    }
+
+    /**
+     * @return True if somebody waits for the result of the oldest waiting command, false if not or
+     * if no command is waiting
+     */
+    boolean isOldestWaitedFor() {
+        Entry e = entries.peek();
+        return e != null && e.future != null;
+    }
+
+    /**
+     * A positive reply arrived for the oldest waiting command.
+     *
+     * @return Round-trip time of the command, or null if no command was waiting
+     */
+    Duration succeed() {
+        Entry e = poll();
+        if (e == null) {
+            return null;
+        }
+        Duration rtt = Duration.ofNanos(System.nanoTime() - e.sentNanos);
+        if (e.future != null) {
+            e.future.complete(rtt);
+        }
+        return rtt;
+    }
+
+    /**
+     * An error reply arrived for the oldest waiting command.
+     *
+     * @param errMsg The error message from the server
+     */
+    void fail(String errMsg) {
+        Entry e = poll();
+        if (e != null && e.future != null) {
+            e.future.completeExceptionally(new ServerErrorException(errMsg));
+        }
+    }
+
+    /**
+     * A "cmderr" reply arrived for a command of this queue, see {@link PendingCommands}.
+     *
+     * @param e      The command, the oldest one waiting on the connection
+     * @param errMsg The error message from the server
+     * @return True if the command was still waiting
+     */
+    boolean failEntry(Entry e, String errMsg) {
+        if (!e.answer()) {
+            return false;
+        }
+        entries.remove(e);
+        if (e.future != null) {
+            e.future.completeExceptionally(new ServerErrorException(errMsg));
+        }
+        return true;
+    }
+
+    /**
+     * Stop waiting for the reply to a command, for example because the server did not answer it in
+     * time. The command stays in the queue as a placeholder, so that a late reply is taken by it
+     * and not by the next command of the same type. The placeholder is dropped once a command
+     * sent after it is answered: the server answers in order, so its reply will never come.
+     *
+     * @param future The future given when the command was registered
+     * @return True if the command was still waiting
+     */
+    boolean abandon(CompletableFuture<Duration> future) {
+        for (Entry e : entries) {
+            if (e.future == future) {
+                if (e.isAnswered()) {
+                    return false;
+                }
+                e.abandoned = true;
+                pending.prune();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop an abandoned command whose reply will never come, see {@link PendingCommands#prune()}.
+     *
+     * @param e The command
+     */
+    void discard(Entry e) {
+        if (e.answer()) {
+            entries.remove(e);
+        }
+    }
+
+    /**
+     * Fail all waiting commands, for example because the connection was closed.
+     *
+     * @param cause The reason
+     */
+    void failAll(Throwable cause) {
+        Entry e;
+        while ((e = entries.poll()) != null) {
+            if (e.answer() && e.future != null) {
+                e.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Take the oldest command which has not been answered yet.
+     *
+     * @return The command, or null if none is waiting
+     */
+    private Entry poll() {
+        Entry e;
+        while ((e = entries.poll()) != null) {
+            if (e.answer()) {
+                pending.prune();
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Number of commands waiting for a reply
+     */
+    int size() {
+        return entries.size();
+    }
+}
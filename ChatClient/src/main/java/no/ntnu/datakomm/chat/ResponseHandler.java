@@ -0,0 +1,17 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Handles one type of response (command) received from the server. Handlers are registered in a
+ * TCPClient for a command word, see {@link TCPClient#registerCommandHandler(String, ResponseHandler)}.
+ */
+@FunctionalInterface
+public interface ResponseHandler {
+
+    /**
+     * Handle a line received from the server. Called on the thread reading from the socket.
+     *
+     * @param line The received line. Valid only until this method returns - copy out whatever is
+     *             needed later
+     */
+    public void handle(ServerLine line);
+}
@@ -0,0 +1,17 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The server rejected a command, for example with "msgerr" or "loginerr". The message of the
+ * exception is the error text sent by the server.
+ */
+public class ServerErrorException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param errMsg Error message sent by the server
+     */
+    public ServerErrorException(String errMsg) {
+        super(errMsg);
+    }
+}
@@ -0,0 +1,321 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A view of one line received from the server, pointing into the receive buffer of a
+ * {@link LineFramer}. The object is reused for every line, so nothing is allocated to look at the
+ * command word; Strings are only created for the parts of the line that are actually asked for.
+ * A ServerLine is valid only until the next line is taken from the framer.
+ * <p>
+ * A binary frame is viewed the same way: the command word comes from the command id, and the
+ * arguments are the fields of the frame, still in the receive buffer, as if they were separated
+ * by spaces. The handlers see the same command word and arguments as for the equivalent text
+ * line.
+ */
+public class ServerLine {
+
+    private final Charset charset;
+    private byte[] buf;
+    // The line is buf[start, end), without the newline
+    private int start;
+    private int end;
+    // Index of the space after the command word, or end if there are no arguments
+    private int cmdEnd;
+
+    // The command word of a binary frame, null for a text line
+    private byte[] word;
+    // The fields of a binary frame are buf[fieldStarts[i], fieldEnds[i]), i < fieldCount
+    private int[] fieldStarts = new int[4];
+    private int[] fieldEnds = new int[4];
+    private int fieldCount;
+
+    /**
+     * @param charset Charset used when parts of the line are converted to Strings
+     */
+    ServerLine(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Point this view to a new line.
+     *
+     * @param buf   Buffer holding the line
+     * @param start Index of the first byte of the line
+     * @param end   Index after the last byte of the line (newline excluded)
+     */
+    void set(byte[] buf, int start, int end) {
+        this.buf = buf;
+        this.start = start;
+        this.end = end;
+        this.cmdEnd = indexOf(' ', start);
+        this.word = null;
+    }
+
+    /**
+     * Point this view to a binary frame. The fields are added with addField().
+     *
+     * @param buf  Buffer holding the fields of the frame
+     * @param word The command word of the frame
+     */
+    void setFrame(byte[] buf, byte[] word) {
+        this.buf = buf;
+        this.word = word;
+        this.fieldCount = 0;
+    }
+
+    /**
+     * Add the next field of the binary frame set with setFrame().
+     *
+     * @param start Index of the first byte of the field
+     * @param end   Index after the last byte of the field
+     */
+    void addField(int start, int end) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldCount++;
+    }
+
+    /**
+     * Check whether the command word of this line is the given one.
+     *
+     * @param command The command word, as bytes
+     * @return True when the command word matches exactly
+     */
+    public boolean isCommand(byte[] command) {
+        if (word != null) {
+            return Arrays.equals(word, command);
+        }
+        if (cmdEnd - start != command.length) {
+            return false;
+        }
+        for (int i = 0; i < command.length; i++) {
+            if (buf[start + i] != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Hash of the command word, computed on the raw bytes
+     */
+    int commandHash() {
+        if (word != null) {
+            return CommandDispatcher.hash(word, 0, word.length);
+        }
+        return CommandDispatcher.hash(buf, start, cmdEnd);
+    }
+
+    /**
+     * @return True when there is something after the command word
+     */
+    public boolean hasArgs() {
+        if (word != null) {
+            return fieldCount > 0;
+        }
+        return cmdEnd < end;
+    }
+
+    /**
+     * @return The command word as a String
+     */
+    public String getCommand() {
+        if (word != null) {
+            return new String(word, charset);
+        }
+        return new String(buf, start, cmdEnd - start, charset);
+    }
+
+    /**
+     * @return Everything after the command word, or an empty String when there are no arguments
+     */
+    public String getArgs() {
+        if (word != null) {
+            return joinFields(0);
+        }
+        return hasArgs() ? new String(buf, cmdEnd + 1, end - cmdEnd - 1, charset) : "";
+    }
+
+    /**
+     * @return The first argument (for example the sender of a message), or null if there are no
+     * arguments
+     */
+    public String getFirstArg() {
+        if (!hasArgs()) {
+            return null;
+        }
+        if (word != null) {
+            int space = indexOf(' ', fieldStarts[0], fieldEnds[0]);
+            return new String(buf, fieldStarts[0], space - fieldStarts[0], charset);
+        }
+        int argEnd = indexOf(' ', cmdEnd + 1);
+        return new String(buf, cmdEnd + 1, argEnd - cmdEnd - 1, charset);
+    }
+
+    /**
+     * @return Everything after the first argument (for example the text of a message), or null if
+     * there is nothing after the first argument
+     */
+    public String getArgsAfterFirst() {
+        if (!hasArgs()) {
+            return null;
+        }
+        if (word != null) {
+            int space = indexOf(' ', fieldStarts[0], fieldEnds[0]);
+            if (space < fieldEnds[0]) {
+                String rest = new String(buf, space + 1, fieldEnds[0] - space - 1, charset);
+                return fieldCount > 1 ? rest + " " + joinFields(1) : rest;
+            }
+            return fieldCount > 1 ? joinFields(1) : null;
+        }
+        int argEnd = indexOf(' ', cmdEnd + 1);
+        if (argEnd >= end) {
+            return null;
+        }
+        return new String(buf, argEnd + 1, end - argEnd - 1, charset);
+    }
+
+    /**
+     * Split the arguments on single spaces, for responses carrying a list (users, supported).
+     *
+     * @return The arguments, an empty array when there are none
+     */
+    public String[] splitArgs() {
+        if (!hasArgs()) {
+            return new String[0];
+        }
+        if (word != null) {
+            return splitFields();
+        }
+        // Count the parts first, so that only the final array is allocated
+        int count = 1;
+        for (int i = cmdEnd + 1; i < end; i++) {
+            if (buf[i] == ' ') {
+                count++;
+            }
+        }
+        String[] parts = new String[count];
+        int partStart = cmdEnd + 1;
+        for (int p = 0; p < count; p++) {
+            int partEnd = indexOf(' ', partStart);
+            parts[p] = new String(buf, partStart, partEnd - partStart, charset);
+            partStart = partEnd + 1;
+        }
+        return parts;
+    }
+
+    /**
+     * @return Length of the line in bytes. For a binary frame, the length of the equivalent text
+     * line
+     */
+    public int length() {
+        if (word != null) {
+            int length = word.length;
+            for (int i = 0; i < fieldCount; i++) {
+                length += 1 + fieldEnds[i] - fieldStarts[i];
+            }
+            return length;
+        }
+        return end - start;
+    }
+
+    /**
+     * @param i Index of a field of the binary frame
+     * @return The field as a String
+     */
+    private String field(int i) {
+        return new String(buf, fieldStarts[i], fieldEnds[i] - fieldStarts[i], charset);
+    }
+
+    /**
+     * @return The words of all the fields of the binary frame. Normally each field of a list is
+     * one word; a field holding spaces is split like the text line would be
+     */
+    private String[] splitFields() {
+        int count = fieldCount;
+        for (int i = 0; i < fieldCount; i++) {
+            for (int j = fieldStarts[i]; j < fieldEnds[i]; j++) {
+                if (buf[j] == ' ') {
+                    count++;
+                }
+            }
+        }
+        String[] parts = new String[count];
+        int p = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            int partStart = fieldStarts[i];
+            while (true) {
+                int partEnd = indexOf(' ', partStart, fieldEnds[i]);
+                parts[p++] = new String(buf, partStart, partEnd - partStart, charset);
+                if (partEnd >= fieldEnds[i]) {
+                    break;
+                }
+                partStart = partEnd + 1;
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * @param from Index of the first field to join
+     * @return The fields of the binary frame from the given one, separated by spaces
+     */
+    private String joinFields(int from) {
+        if (fieldCount - from == 1) {
+            return field(from);
+        }
+        StringBuilder joined = new StringBuilder();
+        for (int i = from; i < fieldCount; i++) {
+            if (i > from) {
+                joined.append(' ');
+            }
+            joined.append(field(i));
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Find a byte in the line.
+     *
+     * @param b    The byte to look for
+     * @param from Index where the search starts
+     * @return Index of the byte, or end if not found
+     */
+    private int indexOf(char b, int from) {
+        return indexOf(b, from, end);
+    }
+
+    /**
+     * Find a byte in a part of the buffer.
+     *
+     * @param b    The byte to look for
+     * @param from Index where the search starts
+     * @param to   Index where the search ends
+     * @return Index of the byte, or to if not found
+     */
+    private int indexOf(char b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return The whole line as a String. Allocates, use for logging only
+     */
+    @Override
+    public String toString() {
+        if (word != null) {
+            return hasArgs() ? getCommand() + " " + getArgs() : getCommand();
+        }
+        return new String(buf, start, end - start, charset);
+    }
+}
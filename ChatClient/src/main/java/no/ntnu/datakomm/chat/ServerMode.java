@@ -0,0 +1,19 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * How the server delivers the messages sent to us.
+ */
+public enum ServerMode {
+    /**
+     * Not negotiated yet on this connection, the server uses its default
+     */
+    UNKNOWN,
+    /**
+     * The server keeps the messages in the inbox until the client asks for them
+     */
+    SYNC,
+    /**
+     * The server pushes every message as soon as it arrives
+     */
+    ASYNC
+}
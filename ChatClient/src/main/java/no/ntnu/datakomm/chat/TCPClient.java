@@ -2,22 +2,74 @@ package no.ntnu.datakomm.chat;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TCPClient {
-    private PrintWriter toServer;
-    private BufferedReader fromServer;
+    // How this client talks to the socket: blocking streams or the shared NIO selector
+    private final TransportMode transportMode;
+
+    private OutputStream toServer;
+    private InputStream fromServer;
     private Socket connection;
-    
-    //Adding the different streams
-    private InputStreamReader inputStreamReader;
-    private OutputStreamWriter outputStreamWriter;
+
+    // Commands waiting to be written. Drained by the writer thread (blocking mode) or the
+    // selector thread (NIO mode), which coalesce all pending commands into one socket write
+    private OutboundQueue outboundQueue;
+    private BlockingWriter writer;
+    // Batching settings, used for the next connection
+    private int maxBatchBytes = 64 * 1024;
+    private long maxLingerMillis = 0;
+    // Makes sure commands are registered in the reply queues in the same order as they are sent
+    private final Object sendLock = new Object();
+
+    // All commands waiting for their reply, whatever the type, for matching the cmderr replies
+    private final PendingCommands pendingCommands = new PendingCommands();
+    // Commands waiting for their reply: msg/privmsg wait for msgok/msgerr, login for loginok/loginerr
+    private final ReplyQueue messageReplies = new ReplyQueue(pendingCommands);
+    private final ReplyQueue loginReplies = new ReplyQueue(pendingCommands);
+    // help commands wait for supported. The heartbeat probes are the ones with a future
+    private final ReplyQueue supportedReplies = new ReplyQueue(pendingCommands);
+    // sync and async wait for modeok
+    private final ReplyQueue modeReplies = new ReplyQueue(pendingCommands);
+    // users waits for users, inbox for the inbox count, binary and compress for binaryok and compressok
+    private final ReplyQueue userListReplies = new ReplyQueue(pendingCommands);
+    private final ReplyQueue inboxReplies = new ReplyQueue(pendingCommands);
+    private final ReplyQueue binaryReplies = new ReplyQueue(pendingCommands);
+    private final ReplyQueue compressReplies = new ReplyQueue(pendingCommands);
+    // How long the futures returned by the ...Async() methods wait for the reply
+    private long replyTimeoutMillis = 10000;
+
+    // The socket registration with the shared selector, used in NIO mode only
+    private NioEventLoop.Connection nioConnection;
+
+    // The chat protocol is UTF-8 text, whatever the platform default charset is
+    private static final Charset PROTOCOL_CHARSET = StandardCharsets.UTF_8;
+
+    // Splits the received bytes into lines, for both transports
+    private final LineFramer lineFramer = new LineFramer(PROTOCOL_CHARSET);
+    // Encodes the outgoing commands. Guarded by sendLock
+    private final Utf8LineEncoder lineEncoder = new Utf8LineEncoder();
     
     //The List of valid commands
-    private static final List<String> validCommands = Arrays.asList("login", "async", "sync", "msg", "privmsg", "inbox", "help", "users");
+    private static final List<String> validCommands = Arrays.asList("login", "async", "sync", "msg", "privmsg", "inbox", "help", "users", "compress", "binary");
     //The different server's response commands
     private static final String cmdLoginOk = "loginok";
     private static final String cmdLoginError = "loginerr";
@@ -28,11 +80,125 @@ public class TCPClient {
     private static final String cmdMsgPrivate = "privmsg";
     private static final String cmdError = "cmderr";
     private static final String cmdSupported = "supported";
+    private static final String cmdCompressOk = "compressok";
+    private static final String cmdBinaryOk = "binaryok";
+    private static final String cmdModeOk = "modeok";
+    private static final String cmdInbox = "inbox";
+    private static final String cmdSync = "sync";
+    private static final String cmdAsync = "async";
+    // The words a server lists in its supported commands when it can compress the stream, and
+    // when it can use binary framing
+    private static final String COMPRESSION_CAPABILITY = "compress";
+    private static final String BINARY_CAPABILITY = "binary";
+
+    // Which handler takes care of which server response, keyed on the command word
+    private final CommandDispatcher dispatcher = new CommandDispatcher(this::onUnknownCommand);
+
+    // The state of the connection. Changed with compare-and-set only, so that a connection is
+    // opened once and closed (and the listeners notified) once, no matter how many threads try
+    private final AtomicReference<ConnectionState> state = new AtomicReference<>(ConnectionState.CLOSED);
+    // The socket of the connect() in progress, and whether disconnect() has cancelled it
+    private volatile Closeable connectingSocket;
+    private volatile boolean connectCancelled = false;
+    // Held while connect() starts an attempt and while disconnect() cancels one, so that a cancel
+    // is never cleared by the start of another attempt
+    private final Object connectLock = new Object();
+
+    // Where we connected last time, and the last username the server accepted. Used to reconnect
+    private String host;
+    private int port;
+    private volatile String lastUsername = null;
+    // True when startListenThread() has been called, so the listener is restarted after a reconnect
+    private volatile boolean listening = false;
+
+    // How to reconnect when the connection is lost; null means no automatic reconnect
+    private ReconnectPolicy reconnectPolicy = null;
+    // True from the moment the connection is lost until it is re-established and the outbox is sent
+    private volatile boolean reconnecting = false;
+    private ScheduledFuture<?> reconnectTask;
+    // Commands sent while reconnecting, sent in order once the connection is back. Guarded by itself
+    private final Queue<OutboxEntry> outbox = new ArrayDeque<>();
+    private int outboxCapacity = 1000;
+
+    // Heartbeat: every heartbeatMillis a help command is sent as a probe. After maxMissedHeartbeats
+    // intervals without a reply the server is considered dead. 0 disables the heartbeat
+    private long heartbeatMillis = 0;
+    private int maxMissedHeartbeats = 3;
+    private volatile ScheduledFuture<?> heartbeatTask;
+    // The probe still waiting for its reply, and how many intervals it has waited. Used by the
+    // heartbeat task only
+    private CompletableFuture<Duration> heartbeatProbe;
+    private int missedHeartbeats;
+
+    // Compression: wanted by the user, and the codec once requested on this connection. Inflating
+    // the received bytes starts when the server has answered compressok
+    private volatile boolean compressionWanted = false;
+    private volatile DeflateCodec codec;
+    private volatile boolean inflating = false;
+    // Receive buffer for the compressed bytes, blocking transport only
+    private final byte[] compressedIn = new byte[8 * 1024];
+
+    // Binary framing: wanted by the user, and whether it was requested on this connection. From
+    // the request on, the commands are sent as frames (binaryOut, guarded by sendLock); the
+    // framer reads frames after binaryok
+    private volatile boolean binaryWanted = false;
+    private volatile boolean binaryRequested = false;
+    private boolean binaryOut = false;
+
+    // The delivery mode the server has confirmed with modeok on this connection. Set on the
+    // reading thread, in the order of the replies
+    private volatile ServerMode mode = ServerMode.UNKNOWN;
+    // Number of sync and async commands sent so far. Only the reply to the latest one changes the
+    // mode, a late reply to an older one must not undo it
+    private final AtomicLong modeRequests = new AtomicLong();
+
+    // The users in the last user list, to find who joined and left. Used by the reading thread
+    // only, replaced by disconnect()
+    private volatile Set<String> knownUsers = new HashSet<>();
+
+    // The inbox being read, if any. The messages following the server's "inbox <count>" reply go
+    // to it instead of the listeners
+    private volatile InboxStream inbox;
+    // Number of inbox messages buffered for the consumer of an InboxStream
+    private static final int DEFAULT_INBOX_BUFFER = 256;
+
+    // How long a connect attempt may take
+    private static final int CONNECT_TIMEOUT_MS = 5000;
 
     // Hint: if you want to store a message for the last error, store it here
     private String lastError = null;
 
-    private final List<ChatListener> listeners = new LinkedList<>();
+    // Delivers the events to the listeners on a thread of the shared dispatcher pool, so that
+    // reading from the socket never waits for listener code
+    private final EventBus events;
+    // The most events handling one line publishes (users left, users joined and the user list),
+    // plus one for the disconnect event if the connection is closed right after it. In NIO mode
+    // reading is paused while the event queue has less room than this
+    private static final int MAX_EVENTS_PER_LINE = 4;
+
+    // Counters and latencies, published over JMX while connected
+    private final ClientMetrics metrics = new ClientMetrics(this);
+
+    /**
+     * Create a client which uses the classic blocking socket transport.
+     */
+    public TCPClient() {
+        this(TransportMode.BLOCKING);
+    }
+
+    /**
+     * Create a client with the given transport. In {@link TransportMode#NIO} mode no thread is
+     * started per connection: one shared selector thread reads and writes the sockets of all NIO
+     * clients. In both modes the listeners are notified on a thread of the shared event pool, one
+     * event at a time.
+     *
+     * @param transportMode The transport to use for the connection
+     */
+    public TCPClient(TransportMode transportMode) {
+        this.transportMode = transportMode;
+        this.events = new EventBus(EventBus.DEFAULT_CAPACITY, metrics.listenerLatency);
+        registerDefaultHandlers();
+    }
 
     /**
      * Connect to a chat server.
@@ -45,27 +211,53 @@ public class TCPClient {
         // Step 1: implement this method
         // Hint: Remember to process all exceptions and return false on error
         // Hint: Remember to set up all the necessary input/output stream variables
+
+        //Only one connection at a time. A disconnect() from now on cancels this connect
+        synchronized (connectLock) {
+            if (!state.compareAndSet(ConnectionState.CLOSED, ConnectionState.CONNECTING)) {
+                lastError = "Error: Already connected";
+                return false;
+            }
+            //Only this attempt can be cancelled from now on, not one which has failed already
+            connectCancelled = false;
+        }
+
+        //Remember where we connected, in case we have to reconnect
+        this.host = host;
+        this.port = port;
         
+        if (transportMode == TransportMode.NIO) {
+            return connectNio(host, port);
+        }
+
         try {
             //Connecting to the socket of the server
-            connection = new Socket(host, port);
+            connection = new Socket();
+            startConnecting(connection);
+            connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            connectingSocket = null;
             
-            //retrieving the input stream from the socket
-            inputStreamReader = new InputStreamReader(connection.getInputStream());
+            //retrieving the input stream from the socket. It is read as raw bytes, the line framer
+            //splits it into lines
+            fromServer = connection.getInputStream();
+            lineFramer.reset();
+            resetNegotiatedModes();
             //retrieving the output stream from the socket
-            outputStreamWriter = new OutputStreamWriter(connection.getOutputStream());
-            
-            //Setting up the reader to the input stream
-            fromServer = new BufferedReader(inputStreamReader);
-            //Setting up the writer to the output stream
-            toServer = new PrintWriter(outputStreamWriter);
+            toServer = connection.getOutputStream();
+
+            //Setting up the writer thread which sends the queued commands in batches
+            outboundQueue = new OutboundQueue(maxBatchBytes);
+            writer = new BlockingWriter(outboundQueue, toServer,
+                    TimeUnit.MILLISECONDS.toNanos(maxLingerMillis), this::connectionLost);
+            writer.start();
+            connectionEstablished();
             
-            log("Connection Success");
+            ClientLog.info("Connection Success");
             
         } catch (IOException ioException) {
 
-            System.out.println("ERROR: Something went wrong when connecting to the server");
-            ioException.printStackTrace();
+            ClientLog.error("Something went wrong when connecting to the server", ioException);
+            state.set(ConnectionState.CLOSED);
             return false;
         }
         
@@ -73,67 +265,640 @@ public class TCPClient {
     }
 
     /**
-     * Close the socket. This method must be synchronized, because several
-     * threads may try to call it. For example: When "Disconnect" button is
-     * pressed in the GUI thread, the connection will get closed. Meanwhile, the
-     * background thread trying to read server's response will get error in the
-     * input stream and may try to call this method when the socket is already
-     * in the process of being closed. with "synchronized" keyword we make sure
-     * that no two threads call this method in parallel.
+     * Connect to a chat server with a non-blocking socket channel and register it with the shared
+     * selector thread.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return True on success, false otherwise
      */
-    public synchronized void disconnect() {
+    private boolean connectNio(String host, int port) {
+        try {
+            // The connect itself is blocking, the channel is switched to non-blocking on registration
+            SocketChannel channel = SocketChannel.open();
+            startConnecting(channel);
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            connectingSocket = null;
+            lineFramer.reset();
+            resetNegotiatedModes();
+            outboundQueue = new OutboundQueue(maxBatchBytes);
+            nioConnection = NioEventLoop.getShared().register(channel, new NioEventLoop.Handler() {
+                @Override
+                public void onRead(ByteBuffer data) {
+                    parseIncomingBytes(data);
+                }
+
+                @Override
+                public void onClosed() {
+                    connectionLost();
+                }
+            }, outboundQueue);
+            connectionEstablished();
+
+            ClientLog.info("Connection Success (NIO)");
+
+        } catch (IOException ioException) {
+            ClientLog.error("Something went wrong when connecting to the server", ioException);
+            state.set(ConnectionState.CLOSED);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * A socket is about to connect: remember it, so that disconnect() can cancel the connect.
+     *
+     * @param socket The socket
+     * @throws IOException When the connect has been cancelled already
+     */
+    private void startConnecting(Closeable socket) throws IOException {
+        connectingSocket = socket;
+        if (connectCancelled) {
+            connectingSocket = null;
+            socket.close();
+            throw new IOException("Connect cancelled");
+        }
+    }
+
+    /**
+     * The socket is connected and the reading and writing sides are set up: the connection is
+     * ready to use.
+     *
+     * @throws IOException When disconnect() was called meanwhile, the connection is closed again
+     */
+    private void connectionEstablished() throws IOException {
+        state.set(ConnectionState.CONNECTED);
+        if (connectCancelled) {
+            //disconnect() was called while connecting, after it looked at the state
+            closeConnection();
+            throw new IOException("Connect cancelled");
+        }
+        metrics.register();
+        startHeartbeat();
+        //Ask the server to push the messages, so they arrive without polling the inbox. Nobody
+        //waits for the reply, it only updates the mode
+        requestAsyncMode();
+        if (compressionWanted || binaryWanted) {
+            //Find out if the server can compress or use binary framing. The reply is handled like
+            //a heartbeat probe, the listeners don't hear about it
+            sendCommand("help", supportedReplies, new CompletableFuture<>());
+        }
+    }
+
+    /**
+     * Ask a new connection for async mode. If the server refuses (cmderr) or does not answer within
+     * the reply timeout, the mode stays UNKNOWN. A modeok arriving after the timeout is taken by
+     * this command without changing the mode, so that it can't complete a later sync or async
+     * command with the wrong mode.
+     */
+    private void requestAsyncMode() {
+        CompletableFuture<Duration> result = modeFuture(ServerMode.ASYNC);
+        if (!sendCommand(cmdAsync, modeReplies, result)) {
+            return;
+        }
+        result.orTimeout(replyTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((rtt, e) -> {
+            if (e instanceof TimeoutException) {
+                modeReplies.abandon(result);
+                ClientLog.warn("The server did not confirm async mode");
+            } else if (e instanceof ServerErrorException) {
+                ClientLog.warn("The server refused async mode: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Close the socket. An automatic reconnect in progress is cancelled, and messages waiting in
+     * the outbox are dropped.
+     */
+    public void disconnect() {
         // Step 4: implement this method
         // Hint: remember to check if connection is active
+
+        //A disconnect requested by the user: don't try to reconnect
+        cancelReconnect();
+        Closeable socket = null;
+        synchronized (connectLock) {
+            if (state.get() == ConnectionState.CONNECTING) {
+                //Cancel the connect in progress: closing the socket ends the blocking connect, and
+                //if it has already succeeded, the connect sees the flag and closes the connection
+                connectCancelled = true;
+                socket = connectingSocket;
+            }
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                ClientLog.warn("Could not close the connecting socket: " + e.getMessage());
+            }
+        }
+        closeConnection();
+    }
+
+    /**
+     * Close the socket. Several threads may try to call this method. For example: When
+     * "Disconnect" button is pressed in the GUI thread, the connection will get closed. Meanwhile,
+     * the background thread trying to read server's response will get error in the input stream
+     * and may try to call this method when the socket is already in the process of being closed.
+     * Only the thread which moves the state to CLOSING does the work, the others return at once
+     * without waiting, so two threads closing the connection can't deadlock.
+     *
+     * @return True if this call closed the connection, false if it was already closed
+     */
+    private boolean closeConnection() {
+        //Only the first call closes the connection, the others have nothing to do
+        ConnectionState current;
+        do {
+            current = state.get();
+            if (current != ConnectionState.CONNECTED && current != ConnectionState.LOGGED_IN) {
+                return false;
+            }
+        } while (!state.compareAndSet(current, ConnectionState.CLOSING));
+
+        stopHeartbeat();
+        //The metrics of a closed connection are not shown, connect() registers them again
+        metrics.unregister();
+        //The next connection, also an automatic reconnect, starts with nobody known: its first list
+        //reports everybody as joined
+        knownUsers = new HashSet<>();
+
+        if (transportMode == TransportMode.NIO) {
+            //The compressor is freed once the selector has written what is still queued
+            DeflateCodec c = codec;
+            if (nioConnection != null) {
+                nioConnection.close(c != null ? c::end : null);
+            } else if (c != null) {
+                c.end();
+            }
+            //CLOSED last: a connect() on another thread may start as soon as it is set, and must
+            //not find its new replies failed by this teardown
+            failPendingReplies();
+            state.set(ConnectionState.CLOSED);
+            onDisconnect();
+            ClientLog.info("Disconnect Success");
+            return true;
+        }
         
+        //Let the writer thread send what is still queued, then stop it
+        if (writer != null) {
+            writer.close();
+        }
+
         try {
             
             //Closing the socket
-            if (isConnectionActive()) {
+            if (connection != null) {
                 connection.close();
             }
             
-            //Closing the Input StreamReader
-            if (inputStreamReader != null) {
-                inputStreamReader.close();
-            }
-            
-            //Closing the Output StreamReader
-            if (outputStreamWriter != null) {
-                outputStreamWriter.close();
-            }
-            
-            //Closing the buffReader
+            //Closing the input stream
             if (fromServer != null) {
                 fromServer.close();
             }
             
-            //Closing the buffWriter
+            //Closing the output stream
             if (toServer != null) {
                 toServer.close();
             }
             
-            //notify the listeners that connection is closed
-            onDisconnect();
-            
-            log("Disconnect Success");
+            ClientLog.info("Disconnect Success");
             
         } catch (IOException ioException) {
-            System.out.println("ERROR: Something went wrong when disconnecting from the server");
-            ioException.printStackTrace();
+            ClientLog.error("Something went wrong when disconnecting from the server", ioException);
         }
-        
+
+        //Free the native memory of the compression, the writer is done with it
+        DeflateCodec c = codec;
+        if (c != null) {
+            c.end();
+        }
+
+        //notify the listeners that connection is closed, also when closing failed. CLOSED is set
+        //after the pending replies are failed, as above
+        failPendingReplies();
+        state.set(ConnectionState.CLOSED);
+        onDisconnect();
+        return true;
+    }
+
+    /**
+     * Called when the connection is lost without the user asking for it: the server closed it or
+     * the socket failed. Closes the connection and, if a reconnect policy is set, starts trying to
+     * reconnect.
+     */
+    private void connectionLost() {
+        if (closeConnection() && reconnectPolicy != null) {
+            synchronized (outbox) {
+                reconnecting = true;
+                scheduleReconnect(1);
+            }
+        }
+    }
+
+    /**
+     * Schedule a reconnect attempt after the backoff delay of the policy.
+     *
+     * @param attempt Number of the attempt, starting from 1
+     */
+    private void scheduleReconnect(int attempt) {
+        long delay = reconnectPolicy.getDelayMillis(attempt);
+        ClientLog.info("Reconnect attempt " + attempt + " in " + delay + " ms");
+        synchronized (outbox) {
+            //The scheduler only waits, the blocking connect runs on the connector pool
+            reconnectTask = ClientScheduler.get().schedule(
+                    () -> ClientScheduler.connector().execute(() -> attemptReconnect(attempt)),
+                    delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Try to re-establish the lost connection: connect, restart the listener, log in again with the
+     * last accepted username and send everything queued in the outbox. Runs on the shared connector
+     * pool.
+     *
+     * @param attempt Number of the attempt, starting from 1
+     */
+    private void attemptReconnect(int attempt) {
+        if (!reconnecting) {
+            //Cancelled meanwhile
+            return;
+        }
+        if (connect(host, port)) {
+            if (listening) {
+                startListenThread();
+            }
+            ClientLog.info("Reconnected after " + attempt + " attempt(s)");
+            metrics.addReconnect();
+            onReconnected();
+            //The outbox is sent once the server has accepted the login again, the messages must not
+            //go out on a connection which is not logged in
+            String username = lastUsername;
+            if (username != null) {
+                reLogin(username);
+            } else {
+                replayOutbox();
+            }
+        } else if (attempt < reconnectPolicy.getMaxAttempts()) {
+            scheduleReconnect(attempt + 1);
+        } else {
+            lastError = "Error: Could not reconnect to the server";
+            cancelReconnect();
+        }
+    }
+
+    /**
+     * Log in again on the re-established connection and send the outbox when the server accepts
+     * the login. If it refuses (the name was taken meanwhile) or does not answer, the messages in
+     * the outbox fail. If the connection is lost again, they stay for the next attempt.
+     *
+     * @param username The last username the server accepted
+     */
+    private void reLogin(String username) {
+        CompletableFuture<Duration> login = loginFuture(username);
+        if (!sendCommand("login " + username, loginReplies, login)) {
+            //Lost again, connectionLost() has scheduled the next attempt
+            return;
+        }
+        login.orTimeout(replyTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((rtt, e) -> {
+            if (e == null) {
+                replayOutbox();
+            } else if (!(e instanceof IOException)) {
+                lastError = "Error: Could not log in again after reconnecting";
+                ClientLog.warn("Could not log in again as " + username + ": " + e.getMessage());
+                stopReconnecting(new IOException("Could not log in again after reconnecting", e));
+            }
+        });
+    }
+
+    /**
+     * Send everything from the outbox, in order, and end the reconnecting state. New messages wait
+     * until the outbox is empty, so that the order is kept.
+     */
+    private void replayOutbox() {
+        synchronized (outbox) {
+            OutboxEntry entry;
+            while ((entry = outbox.poll()) != null) {
+                if (!sendCommand(entry.cmd, entry.replies, entry.future) && entry.future != null) {
+                    entry.future.completeExceptionally(new IOException("Connection lost again"));
+                }
+            }
+            reconnecting = false;
+        }
+    }
+
+    /**
+     * Stop reconnecting and drop the messages waiting in the outbox.
+     */
+    private void cancelReconnect() {
+        stopReconnecting(new IOException("Not connected to the server"));
+    }
+
+    /**
+     * Stop reconnecting and fail the messages waiting in the outbox.
+     *
+     * @param cause The exception their futures fail with
+     */
+    private void stopReconnecting(IOException cause) {
+        synchronized (outbox) {
+            reconnecting = false;
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
+            }
+            OutboxEntry entry;
+            while ((entry = outbox.poll()) != null) {
+                if (entry.future != null) {
+                    entry.future.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a command in the outbox while reconnecting. If the connection has been re-established
+     * meanwhile, the command is sent right away instead.
+     *
+     * @param cmd     The command
+     * @param replies The queue where the command waits for its reply, or null
+     * @param future  Completed when the reply arrives, can be null
+     * @return True if the command was queued or sent, false if the outbox is full
+     */
+    private boolean queueInOutbox(String cmd, ReplyQueue replies, CompletableFuture<Duration> future) {
+        synchronized (outbox) {
+            if (!reconnecting) {
+                return sendCommand(cmd, replies, future);
+            }
+            if (outbox.size() >= outboxCapacity) {
+                lastError = "Error: The outbox is full, message not sent";
+                return false;
+            }
+            outbox.add(new OutboxEntry(cmd, replies, future));
+            ClientLog.debug("Queued while reconnecting: ", cmd);
+            return true;
+        }
+    }
+
+    /**
+     * Enable automatic reconnect when the connection is lost (not when disconnect() is called).
+     * While reconnecting, sent messages are kept in an outbox and sent after the connection and the
+     * login have been re-established. If the server refuses the login, they fail.
+     *
+     * @param reconnectPolicy The backoff policy, or null to disable automatic reconnect
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * Set how many messages the outbox keeps while reconnecting. Further messages are rejected.
+     *
+     * @param outboxCapacity Maximum number of queued messages
+     */
+    public void setOutboxCapacity(int outboxCapacity) {
+        this.outboxCapacity = outboxCapacity;
+    }
+
+    /**
+     * @return True while the client is trying to re-establish a lost connection
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * A command waiting in the outbox.
+     */
+    private static class OutboxEntry {
+        final String cmd;
+        final ReplyQueue replies;
+        final CompletableFuture<Duration> future;
+
+        OutboxEntry(String cmd, ReplyQueue replies, CompletableFuture<Duration> future) {
+            this.cmd = cmd;
+            this.replies = replies;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Fail the futures of all commands still waiting for a reply, the replies will never arrive.
+     */
+    private void failPendingReplies() {
+        IOException closed = new IOException("Connection closed");
+        messageReplies.failAll(closed);
+        loginReplies.failAll(closed);
+        supportedReplies.failAll(closed);
+        modeReplies.failAll(closed);
+        userListReplies.failAll(closed);
+        inboxReplies.failAll(closed);
+        binaryReplies.failAll(closed);
+        compressReplies.failAll(closed);
+        pendingCommands.clear();
+        InboxStream s = inbox;
+        if (s != null) {
+            s.fail(closed);
+        }
+    }
+
+    /**
+     * Ask for a compressed connection. If the server lists "compress" among its supported
+     * commands, both directions of the connection are compressed with deflate, which saves a lot
+     * of bandwidth in busy chat rooms at some CPU cost. Servers which don't support it are used
+     * uncompressed. Takes effect on the next connect().
+     *
+     * @param compression True to compress when the server supports it
+     */
+    public void setCompression(boolean compression) {
+        this.compressionWanted = compression;
+    }
+
+    /**
+     * @return True if compression has been negotiated on the current connection
+     */
+    public boolean isCompressionActive() {
+        return codec != null;
+    }
+
+    /**
+     * Forget the compression and framing state of the previous connection.
+     */
+    private void resetNegotiatedModes() {
+        mode = ServerMode.UNKNOWN;
+        codec = null;
+        inflating = false;
+        synchronized (sendLock) {
+            binaryRequested = false;
+            binaryOut = false;
+        }
+    }
+
+    /**
+     * Ask for binary framing. If the server lists "binary" among its supported commands, the
+     * commands in both directions are sent as length-prefixed binary frames instead of text
+     * lines: cheaper to parse, and message texts may contain newlines. Takes effect on the next
+     * connect().
+     *
+     * @param binaryFraming True to use binary framing when the server supports it
+     */
+    public void setBinaryFraming(boolean binaryFraming) {
+        this.binaryWanted = binaryFraming;
+    }
+
+    /**
+     * @return True if binary framing has been requested on the current connection
+     */
+    public boolean isBinaryFramingActive() {
+        return binaryRequested;
+    }
+
+    /**
+     * Send the binary framing request. Everything written after it is sent as frames, the server
+     * sends frames after its binaryok reply.
+     */
+    private void requestBinaryFraming() {
+        synchronized (sendLock) {
+            if (binaryRequested) {
+                return;
+            }
+            if (sendCommand("binary", binaryReplies, null)) {
+                binaryRequested = true;
+                binaryOut = true;
+                ClientLog.info("Binary framing requested");
+            }
+        }
+    }
+
+    /**
+     * Send the compression request. Everything written after it is compressed, the server
+     * compresses everything after its compressok reply.
+     */
+    private void requestCompression() {
+        synchronized (sendLock) {
+            if (codec != null) {
+                return;
+            }
+            if (sendCommand("compress deflate", compressReplies, null)) {
+                //Only created when used: it holds native memory until end() is called
+                DeflateCodec newCodec = new DeflateCodec();
+                codec = newCodec;
+                outboundQueue.startCompression(newCodec);
+                ClientLog.info("Compression requested");
+            }
+        }
+    }
+
+    /**
+     * The server has accepted compression: the bytes received after compressok are compressed.
+     * The framer may already hold some of them, those are decompressed first.
+     */
+    private void startInflating() {
+        DeflateCodec c = codec;
+        if (c == null || inflating) {
+            return;
+        }
+        inflating = true;
+        byte[] rest = lineFramer.takeUnread();
+        try {
+            c.inflate(rest, 0, rest.length, lineFramer);
+        } catch (IOException e) {
+            ClientLog.error("Compressed stream failed", e);
+            connectionLost();
+        }
+    }
+
+    /**
+     * Read compressed bytes from the socket and put the decompressed bytes in the framer.
+     *
+     * @return Number of bytes read from the socket, -1 at the end of the stream
+     * @throws IOException When reading fails, or the data can't be decompressed
+     */
+    private int readCompressed() throws IOException {
+        int n = fromServer.read(compressedIn);
+        if (n > 0) {
+            codec.inflate(compressedIn, 0, n, lineFramer);
+        }
+        return n;
+    }
+
+    /**
+     * Enable the heartbeat: a help command is sent every intervalMillis to measure the round-trip
+     * time (see {@link ClientMetricsMBean#getHeartbeatRttMeanMicros()}). If no reply arrives within
+     * maxMissed intervals, the server is considered dead and the connection is closed (and
+     * re-established, if a reconnect policy is set). The replies to the probes are not reported
+     * to the listeners. Takes effect on the next connect().
+     *
+     * @param intervalMillis Time between the probes, 0 to disable the heartbeat
+     * @param maxMissed      Number of intervals without a reply before the connection is closed
+     */
+    public void setHeartbeat(long intervalMillis, int maxMissed) {
+        if (intervalMillis < 0 || maxMissed < 1) {
+            throw new IllegalArgumentException("Invalid heartbeat settings");
+        }
+        this.heartbeatMillis = intervalMillis;
+        this.maxMissedHeartbeats = maxMissed;
+    }
+
+    /**
+     * Start sending heartbeat probes, if enabled.
+     */
+    private void startHeartbeat() {
+        if (heartbeatMillis > 0) {
+            heartbeatProbe = null;
+            missedHeartbeats = 0;
+            heartbeatTask = ClientScheduler.get().scheduleAtFixedRate(this::heartbeat,
+                    heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop sending heartbeat probes.
+     */
+    private void stopHeartbeat() {
+        ScheduledFuture<?> task = heartbeatTask;
+        if (task != null) {
+            task.cancel(false);
+            heartbeatTask = null;
+        }
+    }
+
+    /**
+     * One heartbeat interval: check that the previous probe has been answered, then send the next.
+     * Runs on the shared scheduler, never in parallel with itself.
+     */
+    private void heartbeat() {
+        if (heartbeatProbe != null && !heartbeatProbe.isDone()) {
+            //Still no reply: don't pile up more probes, just count the interval
+            missedHeartbeats++;
+            metrics.addHeartbeatMissed();
+            if (missedHeartbeats >= maxMissedHeartbeats) {
+                ClientLog.warn("No reply to the heartbeat in " + missedHeartbeats
+                        + " intervals, closing the connection");
+                connectionLost();
+            }
+            return;
+        }
+        missedHeartbeats = 0;
+        CompletableFuture<Duration> probe = new CompletableFuture<>();
+        probe.thenAccept(rtt -> metrics.heartbeatRtt.record(rtt.toNanos()));
+        heartbeatProbe = probe;
+        sendCommand("help", supportedReplies, probe);
     }
 
     /**
      * @return true if the connection is active (opened), false if not.
      */
     public boolean isConnectionActive() {
-        
-        //Checks if there is/has been a successful connection 
-        // and check that the socket is not closed.
-        if ((connection != null) && (connection.isConnected() && !connection.isClosed())) {
-            return true;
-        } else return false;
+        //A single volatile read, cheap enough for every send and every loop iteration
+        ConnectionState current = state.get();
+        return current == ConnectionState.CONNECTED || current == ConnectionState.LOGGED_IN;
+    }
+
+    /**
+     * @return The current state of the connection
+     */
+    public ConnectionState getConnectionState() {
+        return state.get();
     }
 
     /**
@@ -143,38 +908,90 @@ public class TCPClient {
      * @return true on success, false otherwise
      */
     private boolean sendCommand(String cmd) {
+        return sendCommand(cmd, null, null);
+    }
+
+    /**
+     * Send a command to server, and register it as waiting for a reply.
+     *
+     * @param cmd     A command. It should include the command word and optional attributes, according to the protocol.
+     * @param replies The queue where the command waits for its reply, or null if it doesn't expect one
+     * @param future  Completed when the reply arrives, can be null
+     * @return true on success, false otherwise
+     */
+    private boolean sendCommand(String cmd, ReplyQueue replies, CompletableFuture<Duration> future) {
         // Step 2: Implement this method
         // Hint: Remember to check if connection is active
-        
-        //A list of all valid commands
-        //List<String> validCommands
-        
-        
+
         //Check if the connection is active
         if (isConnectionActive()) {
-            
+
+            //The command word is everything before the first space
+            int spaceIndex = cmd.indexOf(' ');
+            String cmdWord = spaceIndex >= 0 ? cmd.substring(0, spaceIndex) : cmd;
+
             //Check if the command is valid
-            if (validCommands.contains(cmd)) {
-                
-                //write the command to the writer
-                toServer.write(cmd);
+            if (validCommands.contains(cmdWord)) {
+
+                //write the whole command as one line. The reply is expected in the same order as
+                //the commands are written, so both happen under the same lock
+                synchronized (sendLock) {
+                    if (replies != null) {
+                        replies.expect(future);
+                    }
+                    writeLine(cmd);
+                }
                 //Return true since the command is valid and written down
-                log("Command: " + cmd);
+                ClientLog.debug("Command: ", cmd);
                 return true;
-                
+
             } else {
-                
-                log("ERROR: The command is not valid");
+
+                ClientLog.warn("The command is not valid");
                 return false;
             }
-            
+
         } else {
-            log("ERROR: The Connection is NOT active");
+            ClientLog.warn("The Connection is NOT active");
             return false;
         }
 
     }
 
+    /**
+     * Queue one line of text for sending to the server. The line is written by the writer thread
+     * (blocking mode) or the selector thread (NIO mode) together with any other pending lines, so
+     * the calling thread never blocks on the socket. Must be called with sendLock held.
+     *
+     * @param line The line to send, without the trailing newline
+     */
+    private void writeLine(String line) {
+        byte[] bytes = binaryOut ? lineEncoder.encodeFrame(line) : lineEncoder.encode(line);
+        outboundQueue.add(bytes);
+        metrics.addCommandSent(bytes.length);
+        if (transportMode == TransportMode.NIO) {
+            nioConnection.requestFlush();
+        }
+    }
+
+    /**
+     * Configure how outgoing commands are batched. Takes effect on the next connect().
+     *
+     * @param maxBatchBytes   Maximum number of bytes written to the socket in one write
+     * @param maxLingerMillis How long the writer waits for more commands to join a batch after the
+     *                        first one is queued. 0 means write immediately; whatever has piled up
+     *                        meanwhile is still sent as one batch. Applies to the blocking
+     *                        transport - in NIO mode the selector thread writes whatever is pending
+     *                        as soon as the socket is writable
+     */
+    public void setWriteBatching(int maxBatchBytes, long maxLingerMillis) {
+        if (maxBatchBytes <= 0 || maxLingerMillis < 0) {
+            throw new IllegalArgumentException("Invalid write batching settings");
+        }
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxLingerMillis = maxLingerMillis;
+    }
+
     
     /**
      * Send a public message to all the recipients.
@@ -186,24 +1003,20 @@ public class TCPClient {
         // Step 2: implement this method
         // Hint: Reuse sendCommand() method
         // Hint: update lastError if you want to store the reason for the error.
+
+        //While the connection is being re-established, the message waits in the outbox
+        if (reconnecting) {
+            return queueInOutbox("msg " + message, messageReplies, null);
+        }
         
         //Checks if the connection is active
         if (isConnectionActive()) {
             
-            //Send the command "msg"
-            if (sendCommand("msg")) {
-                
-                //Write the message to the server
-                toServer.write(" " + message);
-
-                //Prints/Sends the messages as a single line
-                toServer.println();
-
-                //flushes the printWriter
-                toServer.flush();
+            //Send the command "msg" together with the message
+            if (sendCommand("msg " + message, messageReplies, null)) {
 
                 //Document the progress
-                log("Sending to Server: " + "msg " + message);
+                ClientLog.debug("Sending to Server: msg ", message);
 
                 //Return true since the message is sent
                 return true;
@@ -220,110 +1033,339 @@ public class TCPClient {
     }
 
     /**
-     * Send a login request to the chat server.
+     * Send a login request to the chat server.
+     *
+     * @param username Username to use
+     */
+    public void tryLogin(String username) {
+        // Step 3: implement this method
+        // Hint: Reuse sendCommand() method
+        
+        if (isConnectionActive()) {
+
+            //Send the command together with the username. Remember the username if the server accepts it
+            if (sendCommand("login " + username, loginReplies, loginFuture(username))) {
+
+                ClientLog.debug("Sending to Server: login ", username);
+            }
+
+        } else {
+            
+            ClientLog.warn("The login command was not sent");
+        }
+    }
+
+    /**
+     * Send a request for latest user list to the server. To get the new users,
+     * clear your current user list and use events in the listener.
+     */
+    public void refreshUserList() {
+        // Step 5: implement this method
+        // Hint: Use Wireshark and the provided chat client reference app to find out what commands the
+        // client and server exchange for user listing.
+        
+        //The ip was 142.93.163.244
+        //There is a command called "users"
+        //the client sends "users" to the server and receives "users <list of users>"
+        //<list of users> is a username followed by a new username, there is only a space between each username
+        
+        
+        sendCommand("users", userListReplies, null);
+    }
+
+    /**
+     * Send a private message to a single recipient.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return true if message sent, false on error
+     */
+    public boolean sendPrivateMessage(String recipient, String message) {
+        // Step 6: Implement this method
+        // Hint: Reuse sendCommand() method
+        // Hint: update lastError if you want to store the reason for the error.
+
+        //how the message need to look: privmsg <recipient> <message>
+        //Example: privmsg Harald Hello!
+
+        String cmd = "privmsg";
+
+        //While the connection is being re-established, the message waits in the outbox
+        if (reconnecting) {
+            return queueInOutbox(cmd + " " + recipient + " " + message, messageReplies, null);
+        }
+
+        //Checks if the connection is active
+        if (isConnectionActive()) {
+
+            //Send the command "privmsg" with the <recipient> and the message, separated by spaces
+            if (sendCommand(cmd + " " + recipient + " " + message, messageReplies, null)) {
+
+                //log
+                if (ClientLog.isEnabled(ClientLog.Level.DEBUG)) {
+                    ClientLog.debug("Sending to Server: " + cmd + " " + recipient + " " + message);
+                }
+
+                //Returning true since the message has been sent
+                return true;
+
+            } else {
+                lastError = "Error: Command was not valid, when sending a private msg";
+                return false;
+            }
+        } else {
+            lastError = "Error: Failed to send private msg";
+            return false;
+        }
+    }
+
+
+    /**
+     * Send a public message and get a future which completes when the server has acknowledged it.
+     * Many messages can be sent without waiting; the replies are matched with the messages in the
+     * order they were sent.
+     *
+     * @param message Message to send
+     * @return Future completed with the acknowledgement round-trip time on "msgok", or completed
+     * exceptionally with a {@link ServerErrorException} on "msgerr", a TimeoutException if no reply
+     * arrives in time (see {@link #setReplyTimeout(long)}) or an IOException if the connection closes
+     */
+    public CompletableFuture<Duration> sendPublicMessageAsync(String message) {
+        return sendAsync("msg " + message, messageReplies, new CompletableFuture<>());
+    }
+
+    /**
+     * Send a private message and get a future which completes when the server has acknowledged it.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return Future completed the same way as for {@link #sendPublicMessageAsync(String)}
+     */
+    public CompletableFuture<Duration> sendPrivateMessageAsync(String recipient, String message) {
+        return sendAsync("privmsg " + recipient + " " + message, messageReplies, new CompletableFuture<>());
+    }
+
+    /**
+     * Send a login request and get a future which completes when the server has answered.
+     * The listeners get the onLoginResult() event as usual.
+     *
+     * @param username Username to use
+     * @return Future completed with the round-trip time on "loginok", or completed exceptionally
+     * with a {@link ServerErrorException} on "loginerr", a TimeoutException or an IOException
+     */
+    public CompletableFuture<Duration> loginAsync(String username) {
+        return sendAsync("login " + username, loginReplies, loginFuture(username));
+    }
+
+    /**
+     * Send many public and private messages at once. The connection is checked once, all the
+     * commands are encoded into one buffer and handed to the writer as a single write, instead of
+     * one command (and possibly one write) per message.
+     * <p>
+     * While reconnecting, the messages wait in the outbox like single messages do. They are checked
+     * before they are queued; since the framing of the new connection is not known yet, a newline
+     * in the text is refused then.
+     *
+     * @param messages The messages, sent in this order
+     * @return One future per message, in the same order, completed the same way as for
+     * {@link #sendPublicMessageAsync(String)}. The future of a message which can't be sent (no
+     * text, invalid recipient, or a newline in the text while binary framing is off) is completed
+     * exceptionally with an IllegalArgumentException, the other messages are still sent
+     */
+    public List<CompletableFuture<Duration>> sendBatch(List<OutgoingMessage> messages) {
+        List<CompletableFuture<Duration>> results = new ArrayList<>(messages.size());
+        if (reconnecting) {
+            for (OutgoingMessage message : messages) {
+                //Checked now, so that an invalid message fails at once and never reaches the server.
+                //The outbox may be sent before binary framing is negotiated again: no newlines
+                String error = message.validate(false);
+                if (error != null) {
+                    CompletableFuture<Duration> result = new CompletableFuture<>();
+                    result.completeExceptionally(new IllegalArgumentException(error));
+                    results.add(result);
+                } else {
+                    results.add(sendAsync(message.toCommand(), messageReplies, new CompletableFuture<>()));
+                }
+            }
+            return results;
+        }
+        if (!isConnectionActive()) {
+            IOException notConnected = new IOException("Not connected to the server");
+            for (int i = 0; i < messages.size(); i++) {
+                CompletableFuture<Duration> result = new CompletableFuture<>();
+                result.completeExceptionally(notConnected);
+                results.add(result);
+            }
+            return results;
+        }
+
+        int sent = 0;
+        //All the commands are encoded and registered for their replies under one lock, so the
+        //batch is contiguous in the stream and the replies match the order of the messages
+        synchronized (sendLock) {
+            for (OutgoingMessage message : messages) {
+                CompletableFuture<Duration> result = new CompletableFuture<>();
+                results.add(result);
+                String error = message.validate(binaryOut);
+                if (error != null) {
+                    result.completeExceptionally(new IllegalArgumentException(error));
+                    continue;
+                }
+                metrics.addCommandSent(lineEncoder.appendToBatch(message.toCommand(), binaryOut));
+                messageReplies.expect(result);
+                sent++;
+            }
+            if (sent > 0) {
+                outboundQueue.add(lineEncoder.takeBatch());
+                if (transportMode == TransportMode.NIO) {
+                    nioConnection.requestFlush();
+                }
+            }
+        }
+        ClientLog.debug("Messages sent in one batch: ", sent);
+        for (CompletableFuture<Duration> result : results) {
+            result.orTimeout(replyTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return results;
+    }
+
+    /**
+     * Switch the server to sync mode and read the messages waiting in the inbox, as a stream. The
+     * messages are parsed as they arrive and at most {@value #DEFAULT_INBOX_BUFFER} of them are
+     * buffered, so even a huge inbox is read in fixed memory. See {@link #readInbox(int)}.
+     *
+     * @return The stream of inbox messages
+     * @throws IOException When not connected
+     */
+    public InboxStream readInbox() throws IOException {
+        return readInbox(DEFAULT_INBOX_BUFFER);
+    }
+
+    /**
+     * Switch the server to sync mode and read the messages waiting in the inbox, as a stream. In
+     * sync mode, the server keeps the messages for us in the inbox instead of pushing them.
+     * <p>
+     * When the consumer is slower than the server, the client stops reading the socket until the
+     * consumer has caught up. The other responses wait in the socket meanwhile, and with the NIO
+     * transport the other clients on the shared selector thread are not affected.
+     * Only one inbox can be read at a time.
+     *
+     * @param bufferSize Maximum number of messages buffered for the consumer
+     * @return The stream of inbox messages
+     * @throws IOException           When not connected
+     * @throws IllegalStateException When another inbox stream is still being read
+     */
+    public InboxStream readInbox(int bufferSize) throws IOException {
+        if (!isConnectionActive()) {
+            throw new IOException("Not connected to the server");
+        }
+        InboxStream s = new InboxStream(bufferSize, replyTimeoutMillis);
+        //The mode switch and the inbox request are sent together, the server answers in order
+        synchronized (sendLock) {
+            InboxStream current = inbox;
+            if (current != null && current.isActive()) {
+                throw new IllegalStateException("An inbox is already being read");
+            }
+            inbox = s;
+            //A cmderr reply to the inbox request ends the stream
+            CompletableFuture<Duration> inboxFuture = new CompletableFuture<>();
+            inboxFuture.whenComplete((rtt, e) -> {
+                if (e instanceof ServerErrorException) {
+                    s.fail(new IOException("The server refused the inbox request: " + e.getMessage(), e));
+                }
+            });
+            if (!sendCommand(cmdSync, modeReplies, modeFuture(ServerMode.SYNC))
+                    || !sendCommand(cmdInbox, inboxReplies, inboxFuture)) {
+                s.fail(new IOException("Not connected to the server"));
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Switch the delivery mode of the server. The client asks for {@link ServerMode#ASYNC} on every
+     * connect, and {@link #readInbox()} switches to {@link ServerMode#SYNC}; use this method to go
+     * back to async mode after reading the inbox, for example.
+     *
+     * @param newMode SYNC or ASYNC
+     * @return Future completed with the round-trip time when the server has confirmed the mode
+     * with "modeok", after which {@link #getMode()} returns the new mode
+     * @throws IllegalArgumentException When newMode is UNKNOWN
+     */
+    public CompletableFuture<Duration> switchMode(ServerMode newMode) {
+        if (newMode == ServerMode.UNKNOWN) {
+            throw new IllegalArgumentException("Can't switch to an unknown mode");
+        }
+        String cmd = newMode == ServerMode.SYNC ? cmdSync : cmdAsync;
+        return sendAsync(cmd, modeReplies, modeFuture(newMode));
+    }
+
+    /**
+     * @return The delivery mode the server has confirmed on this connection, UNKNOWN until the
+     * first modeok arrives
+     */
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Create the future for a sync or async command, which records the mode once the server has
+     * confirmed it, unless another sync or async command has been sent since.
      *
-     * @param username Username to use
+     * @param newMode The mode asked for
+     * @return The future
      */
-    public void tryLogin(String username) {
-        // Step 3: implement this method
-        // Hint: Reuse sendCommand() method
-        
-        if (isConnectionActive()) {
-
-            //Send the command
-            if (sendCommand("login")) {
-                
-                //writs the username to the server
-                toServer.write(" " + username);
-                //Sends the messages to the server
-                toServer.println();
-                //flush the writer
-                toServer.flush();
-
-                log("Sending to Server: login " + username);
+    private CompletableFuture<Duration> modeFuture(ServerMode newMode) {
+        long request = modeRequests.incrementAndGet();
+        CompletableFuture<Duration> result = new CompletableFuture<>();
+        result.thenRun(() -> {
+            if (modeRequests.get() == request) {
+                mode = newMode;
             }
-
-        } else {
-            
-            log("Error: The login command was not sent");
-        }
+        });
+        return result;
     }
 
     /**
-     * Send a request for latest user list to the server. To get the new users,
-     * clear your current user list and use events in the listener.
+     * Send a command (or queue it in the outbox while reconnecting) and return a future completed
+     * by its reply.
+     *
+     * @param cmd     The command
+     * @param replies The queue where the command waits for its reply
+     * @param result  The future to complete
+     * @return The future, with the reply timeout applied
      */
-    public void refreshUserList() {
-        // Step 5: implement this method
-        // Hint: Use Wireshark and the provided chat client reference app to find out what commands the
-        // client and server exchange for user listing.
-        
-        //The ip was 142.93.163.244
-        //There is a command called "users"
-        //the client sends "users" to the server and receives "users <list of users>"
-        //<list of users> is a username followed by a new username, there is only a space between each username
-        
-        
-        if (sendCommand("users")) {
-            toServer.println();
-            toServer.flush();
+    private CompletableFuture<Duration> sendAsync(String cmd, ReplyQueue replies, CompletableFuture<Duration> result) {
+        boolean accepted = reconnecting
+                ? queueInOutbox(cmd, replies, result)
+                : sendCommand(cmd, replies, result);
+        if (!accepted) {
+            result.completeExceptionally(new IOException("Not connected to the server"));
         }
-        
-        //Clearing the user lists
-        onUsersList(new String[0]);
+        return result.orTimeout(replyTimeoutMillis, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Send a private message to a single recipient.
+     * Create the future for a login command. When the server accepts the login, the username is
+     * remembered for logging in again after a reconnect.
      *
-     * @param recipient username of the chat user who should receive the message
-     * @param message   Message to send
-     * @return true if message sent, false on error
+     * @param username The username sent in the login command
+     * @return The future
      */
-    public boolean sendPrivateMessage(String recipient, String message) {
-        // Step 6: Implement this method
-        // Hint: Reuse sendCommand() method
-        // Hint: update lastError if you want to store the reason for the error.
-
-        //how the message need to look: privmsg <recipient> <message>
-        //Example: privmsg Harald Hello!
-
-        String cmd = "privmsg";
-
-        //Checks if the connection is active
-        if (isConnectionActive()) {
-
-            //Send the command "privmsg"
-            if (sendCommand(cmd)) {
-
-                //Send the <recipient> with a space in front
-                toServer.write(" " + recipient);
-
-                //Send the message with a space in front
-                toServer.write(" " + message);
-
-                //ends the line and sends the message
-                toServer.println();
-
-                //flushes the printWriter
-                toServer.flush();
-
-                //log
-                log("Sending to Server: " + cmd + " " + recipient + " " + message);
-
-                //Returning true since the message has been sent
-                return true;
-
-            } else {
-                lastError = "Error: Command was not valid, when sending a private msg";
-                return false;
-            }
-        } else {
-            lastError = "Error: Failed to send private msg";
-            return false;
-        }
+    private CompletableFuture<Duration> loginFuture(String username) {
+        CompletableFuture<Duration> result = new CompletableFuture<>();
+        result.thenRun(() -> lastUsername = username);
+        return result;
     }
 
+    /**
+     * Set how long the futures returned by the ...Async() methods wait for the server's reply.
+     *
+     * @param replyTimeoutMillis Timeout in milliseconds
+     */
+    public void setReplyTimeout(long replyTimeoutMillis) {
+        this.replyTimeoutMillis = replyTimeoutMillis;
+    }
 
     /**
      * Send a request for the list of commands that server supports.
@@ -336,15 +1378,7 @@ public class TCPClient {
         if (isConnectionActive()) {
             
             //Send the command
-            if (sendCommand("help")) {
-                
-                //Prints/Sends the messages as a single line
-                toServer.println();
-                
-                //flushes the printWriter
-                toServer.flush();
-                
-            }
+            sendCommand("help", supportedReplies, null);
         }
     }
 
@@ -352,49 +1386,48 @@ public class TCPClient {
     /**
      * Wait for chat server's response
      *
-     * @return one line of text (one command) received from the server
+     * @return one line (one command) received from the server, as a view into the receive buffer.
+     * The view is valid until the next call. Null if the connection has been closed - by the
+     * server, by an error or locally
      */
-    private String waitServerResponse() {
+    private ServerLine waitServerResponse() {
         // Step 3: Implement this method
         // Step 4: If you get I/O Exception or null from the stream, it means that something has gone wrong
         // with the stream and hence the socket. Probably a good idea to close the socket in that case.
         
-        //Is true when the client have received a response
-        boolean response = false;
-        
-        //A String containing the msg from the server
-        String msgFromServer = null;
+        //The line received from the server
+        ServerLine msgFromServer = null;
         
         //Check if the connection to the server is open.
         if (isConnectionActive()) {
-            
-            //When there is no response then keep waiting and checking every second. 
-            while (!response) {
-
-                try {
-                    //Waiting for the msg form the server
-                    //The code will wait here for a response
-                    
-                    if (isConnectionActive()) msgFromServer = fromServer.readLine(); {
-                        //msgFromServer = fromServer.readLine();
-
-                        if (msgFromServer != null && !msgFromServer.isEmpty()) {
-
-                            log("Server: " + msgFromServer);
-                            //When you have a response stop the while loop
-                            response = true;
-                        }
-                    }
-                    
-                } catch (IOException e) {
-                    //closing the socket because something have gone wrong with the socket
-                    if (isConnectionActive()) {
-                        disconnect();
+
+            try {
+                //Take a complete line from the buffer. If there is none, read more bytes from the socket.
+                //The code will wait (blocked in read, not spinning) here for a response
+                int bytesRead = 0;
+                msgFromServer = lineFramer.nextLine();
+                while (msgFromServer == null && bytesRead >= 0) {
+                    bytesRead = inflating ? readCompressed() : lineFramer.readFrom(fromServer);
+                    if (bytesRead > 0) {
+                        metrics.addBytesReceived(bytesRead);
                     }
+                    msgFromServer = lineFramer.nextLine();
+                }
+
+                if (msgFromServer != null) {
+                    ClientLog.debug("Server: ", msgFromServer);
+                } else {
+                    //End of stream: the server has closed its end of the socket. The socket still
+                    //looks connected from our side, so we must close it here
+                    ClientLog.info("Connection closed by the server");
+                    connectionLost();
                 }
+
+            } catch (IOException e) {
+                //closing the socket because something have gone wrong with the socket.
+                //If we closed it ourselves this does nothing
+                connectionLost();
             }
-        } else {
-            disconnect();
         }
 
         return msgFromServer;
@@ -417,16 +1450,24 @@ public class TCPClient {
      * Start listening for incoming commands from the server in a new CPU thread.
      */
     public void startListenThread() {
+        listening = true;
+        if (transportMode == TransportMode.NIO) {
+            // No thread needed, the shared selector thread starts delivering lines to us
+            if (nioConnection != null) {
+                nioConnection.startReading();
+            }
+            return;
+        }
         // Call parseIncomingCommands() in the new thread.
         Thread t = new Thread(() -> {
             parseIncomingCommands();
-        });
+        }, "chat-listener");
         t.start();
     }
 
     /**
      * Read incoming messages one by one, generate events for the listeners. A loop that runs until
-     * the connection is closed.
+     * the connection is closed. While no data arrives the thread sleeps in the socket read.
      */
     private void parseIncomingCommands() {
         
@@ -441,177 +1482,394 @@ public class TCPClient {
             // Hint: In Step 3 you need to handle only login-related responses.
             // Hint: In Step 3 reuse onLoginResult() method
             
-            String msgFromServer = waitServerResponse();
-            String serverCommand; //The command from the server ("loginok, loginerr ...")
-            String[] msgFromServerTwoParts = null;
-            
-            //Retrieving the command
-            if (msgFromServer.contains(" ")) {
-                //Splitting the msg to view the command alone
-                msgFromServerTwoParts = msgFromServer.split(" ", 2);
-                serverCommand = msgFromServerTwoParts[0];
-            } else {
-                //If there is no space in the msg that it only contains the command
-                serverCommand = msgFromServer;
+            ServerLine msgFromServer = waitServerResponse();
+            if (msgFromServer == null) {
+                //The connection is gone, the listeners have already been notified
+                break;
             }
-            
-            log("Handling msg from server as command: " + serverCommand);
-            
-            //handles response "loginok"
-            if (serverCommand.equals(cmdLoginOk)) {
-                
-                onLoginResult(true, null);
+            handleServerLine(msgFromServer);
+        }
+    }
+
+    /**
+     * Split the bytes received in NIO mode into lines and handle each complete line. Bytes of an
+     * incomplete line are kept in the framer until the rest of it arrives.
+     *
+     * @param data Bytes received from the socket
+     */
+    private void parseIncomingBytes(ByteBuffer data) {
+        metrics.addBytesReceived(data.remaining());
+        if (inflating) {
+            try {
+                codec.inflate(data, lineFramer);
+            } catch (IOException e) {
+                ClientLog.error("Compressed stream failed", e);
+                connectionLost();
+                return;
             }
-            
-            
-            //handles response "loginerr <error message>"
-            if (serverCommand.equals(cmdLoginError)) {
-                
-                //Checks if there is an error msg
-                if (msgFromServerTwoParts != null) {
-                    onLoginResult(false, msgFromServerTwoParts[1]);
-                    
-                    //if not then there is no error msg
-                } else {
-                    onLoginResult(false, null);
-                }
+        } else {
+            lineFramer.feed(data);
+        }
+        handleBufferedLines();
+    }
+
+    /**
+     * Handle the complete lines in the framer, on the NIO selector thread. The selector thread
+     * must not wait, so when the listeners or the consumer of an inbox stream fall behind, reading
+     * the socket is paused and the remaining lines stay in the framer until they have caught up.
+     */
+    private void handleBufferedLines() {
+        try {
+            ServerLine line;
+            while (!pausedForInbox() && !pausedForEvents() && (line = lineFramer.nextLine()) != null) {
+                ClientLog.debug("Server: ", line);
+                handleServerLine(line);
             }
-            
+        } catch (IOException e) {
+            ClientLog.error("Invalid data from the server", e);
+            connectionLost();
+        }
+    }
 
-            // Step 5: update this method, handle user-list response from the server
-            // Hint: In Step 5 reuse onUserList() method
-            
-            //handle response users <usernames>
-            if (serverCommand.equals(cmdUsers)) {
-                
-                //Example: "users name1 name3 user4"
-                
-                //Split msg from the server
-                String[] userListParts = new String[0];
-                if (msgFromServerTwoParts != null) {
-                    //retrieving the msg after the command and splitting it
-                    userListParts = msgFromServerTwoParts[1].split(" ");
-                }
-                
-                //Sends the list to onUsersList
-                onUsersList(userListParts);
+    /**
+     * @return True if the event queue is nearly full and reading has been paused, NIO mode only
+     */
+    private boolean pausedForEvents() {
+        NioEventLoop.Connection c = nioConnection;
+        if (events.pauseWhenFull(MAX_EVENTS_PER_LINE, () -> c.resumeReading(this::handleBufferedLines))) {
+            c.pauseReading();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the inbox buffer is full and reading has been paused, NIO mode only
+     */
+    private boolean pausedForInbox() {
+        InboxStream s = inbox;
+        if (s != null && s.pauseWhenFull(() -> nioConnection.resumeReading(this::handleBufferedLines))) {
+            nioConnection.pauseReading();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Handle one line (one command) received from the server: find the handler registered for its
+     * command word and let it generate events for the listeners.
+     *
+     * @param msgFromServer The line received from the server
+     */
+    private void handleServerLine(ServerLine msgFromServer) {
+        //getCommand() creates a string, so only call it when the message is logged
+        if (ClientLog.isEnabled(ClientLog.Level.DEBUG)) {
+            ClientLog.debug("Handling msg from server as command: " + msgFromServer.getCommand());
+        }
+        metrics.addLineReceived();
+        dispatcher.dispatch(msgFromServer);
+    }
+
+    /**
+     * Register a handler for a server response (command). This can be used to support commands
+     * the client does not know about (for example "joke"), or to replace the built-in handling of a
+     * command. Handlers are called on the thread reading from the socket.
+     *
+     * @param command The command word the server sends, for example "inbox"
+     * @param handler The handler which will be called for every line starting with the command
+     */
+    public void registerCommandHandler(String command, ResponseHandler handler) {
+        dispatcher.register(command, handler);
+    }
+
+    /**
+     * Register the handlers of all the responses defined by the chat protocol.
+     */
+    private void registerDefaultHandlers() {
+        //handles response "loginok"
+        registerCommandHandler(cmdLoginOk, line -> {
+            state.compareAndSet(ConnectionState.CONNECTED, ConnectionState.LOGGED_IN);
+            recordReplyLatency(loginReplies.succeed());
+            onLoginResult(true, null);
+        });
+
+        //handles response "loginerr <error message>"; the error message may be missing
+        registerCommandHandler(cmdLoginError, line -> {
+            String errMsg = line.hasArgs() ? line.getArgs() : null;
+            loginReplies.fail(errMsg);
+            onLoginResult(false, errMsg);
+        });
+
+        //handle response users <usernames>
+        //Example: "users name1 name3 user4"
+        registerCommandHandler(cmdUsers, line -> {
+            userListReplies.succeed();
+            handleUserList(line.splitArgs());
+        });
+
+        //handles "msgok": the message sent was approved by the server
+        registerCommandHandler(cmdMsgOk, line -> recordReplyLatency(messageReplies.succeed()));
+
+        //handles "msgerr <error description>"
+        registerCommandHandler(cmdMsgError, line -> {
+            //Retrieving the error message and try to notify the listeners
+            String errMsg = line.getArgs();
+            messageReplies.fail(errMsg);
+            onMsgError(errMsg);
+            lastError = "Something went wrong with the last private/Global message sent from this client";
+        });
+
+        //handles "msg <sender> <message>" and "privmsg <sender> <message>"
+        registerCommandHandler(cmdMsg, line -> handleIncomingMessage(line, false));
+        registerCommandHandler(cmdMsgPrivate, line -> handleIncomingMessage(line, true));
+
+        //handles "modeok": the server switched to the sync or async mode we asked for
+        registerCommandHandler(cmdModeOk, line -> recordReplyLatency(modeReplies.succeed()));
+
+        //handles "inbox <count>": the count messages that follow are the inbox content
+        registerCommandHandler(cmdInbox, line -> {
+            inboxReplies.succeed();
+            InboxStream s = inbox;
+            if (s == null) {
+                ClientLog.warn("Inbox received, but nobody is reading it");
+                return;
             }
-            
-            // Step 7: add support for incoming chat messages from other users (types: msg, privmsg)
-            // Step 7: add support for incoming message errors (type: msgerr)
-            // Step 7: add support for incoming command errors (type: cmderr)
-            // Hint for Step 7: call corresponding onXXX() methods which will notify all the listeners
-            
-            //handles responses "msg"
-            if (serverCommand.contains(cmdMsg)) {
-                
-                //String[] msgPartsArray = msgFromServer.split(" ", 2);       
-                
-                //msgCommand can be msgok, msgerr, msg or privmsg 
-                //String msgCommand = msgPartsArray[0];
-                
-                //handles "msgok"
-                if (serverCommand.equals(cmdMsgOk)) {
-                    
-                    //The message sent was approved by the server
-                    //There is nothing that need to be done.
-                }
-                
-                
-                //handles "msgerr <error description>"
-                if (serverCommand.equals(cmdMsgError)) {
-                    
-                    //Retrieving the error message and try to notify the listeners
-                    onMsgError(msgFromServerTwoParts[1]);
-                    lastError = "Something went wrong with the last private/Global message sent from this client";
-                    
-                }
-                
-                //handles "msg <sender> <message>" and
-                //handles "privmsg <sender> <message>"
-                if ((serverCommand.equals(cmdMsg) || serverCommand.equals(cmdMsgPrivate)) 
-                        && msgFromServerTwoParts != null) {
-                    
-                    //Note: msgFromServerTwoParts[1] = <sender> <message>
-                    String[] msgSmallerParts = msgFromServerTwoParts[1].split(" ", 2);
-                    
-                    //Note: msgSmallerParts[<sender>, <message>]
-                    String msgSender = msgSmallerParts[0];
-                    String msgMessage = msgSmallerParts[1];
-
-
-                    //Updating the new message
-                    if (serverCommand.equals(cmdMsg)) {
-                        
-                        //Global msg
-                        onMsgReceived(false, msgSender, msgMessage);
-                        
-                    } else { //The only other option is that the command is "privmsg"
-                        
-                        //private msg
-                        onMsgReceived(true, msgSender, msgMessage);
-                    }
-                }
+            try {
+                s.start(Integer.parseInt(line.getFirstArg()));
+            } catch (NumberFormatException e) {
+                s.fail(new IOException("Invalid inbox reply: " + line));
+            }
+        });
+
+        //handles response "cmderr <error message>". It answers the oldest command still waiting,
+        //whatever the type of its normal reply
+        registerCommandHandler(cmdError, line -> {
+            pendingCommands.failOldest(line.hasArgs() ? line.getArgs() : null);
+            if (line.hasArgs()) {
+                onCmdError(line.getArgs());
             }
+        });
 
-            //handles response "cmderr"
-            if (serverCommand.equals(cmdError) && msgFromServerTwoParts != null) {
-                
-                //Retrieving the error message and
-                //try to notify the listeners
-                onCmdError(msgFromServerTwoParts[1]);
+        //handles response "supported <cmd1> … <cmdN>"
+        //Example: supported msg privmsg users help
+        //The replies to heartbeat probes are only measured, the listeners don't hear about them
+        registerCommandHandler(cmdSupported, line -> {
+            boolean probe = supportedReplies.isOldestWaitedFor();
+            supportedReplies.succeed();
+            if (!line.hasArgs()) {
+                return;
             }
-            
-            // Step 8: add support for incoming supported command list (type: supported)
-            
-            //handles response "supported"
-            //supported <cmd1> … <cmdN>
-            //Example: supported msg privmsg users help
-            
-            if (serverCommand.equals(cmdSupported) && msgFromServerTwoParts != null) {
-                //support = an array with all the commands the server supports
-                String[] support = msgFromServerTwoParts[1].split(" ");
-                
-                //Sends the array to onSupported
-                onSupported(support);
+            String[] commands = line.splitArgs();
+            List<String> supported = Arrays.asList(commands);
+            //Compression first: the binary request is then already compressed
+            if (compressionWanted && codec == null && supported.contains(COMPRESSION_CAPABILITY)) {
+                requestCompression();
+            }
+            if (binaryWanted && !binaryRequested && supported.contains(BINARY_CAPABILITY)) {
+                requestBinaryFraming();
+            }
+            if (!probe) {
+                onSupported(commands);
+            }
+        });
+
+        //handles response "compressok", the server compresses everything after it
+        registerCommandHandler(cmdCompressOk, line -> {
+            compressReplies.succeed();
+            startInflating();
+        });
+
+        //handles response "binaryok", the server sends binary frames after it
+        registerCommandHandler(cmdBinaryOk, line -> {
+            binaryReplies.succeed();
+            lineFramer.setBinary(true);
+        });
+    }
+
+    /**
+     * Handle an incoming chat message: "msg <sender> <message>" or "privmsg <sender> <message>".
+     *
+     * @param line The received line
+     * @param priv True if this is a private message
+     */
+    private void handleIncomingMessage(ServerLine line, boolean priv) {
+        if (line.hasArgs()) {
+            //Only the sender and the text are turned into Strings
+            InboxStream s = inbox;
+            if (s != null && s.isExpecting()) {
+                //The message is part of the inbox being read
+                s.put(new TextMessage(line.getFirstArg(), priv, line.getArgsAfterFirst()));
+            } else {
+                onMsgReceived(priv, line.getFirstArg(), line.getArgsAfterFirst());
             }
         }
     }
 
     /**
-     * Register a new listener for events (login result, incoming message, etc)
+     * Compare a received user list with the previous one and notify the listeners of the users
+     * who joined and left, then of the whole list.
      *
-     * @param listener
+     * @param users The usernames in the received list
      */
-    public void addListener(ChatListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
+    private void handleUserList(String[] users) {
+        Set<String> current = new HashSet<>(users.length * 2);
+        List<String> joined = new ArrayList<>();
+        for (String user : users) {
+            if (current.add(user) && !knownUsers.contains(user)) {
+                joined.add(user);
+            }
+        }
+        List<String> left = new ArrayList<>();
+        for (String user : knownUsers) {
+            if (!current.contains(user)) {
+                left.add(user);
+            }
+        }
+        knownUsers = current;
+        if (!left.isEmpty()) {
+            events.publish(EventType.USERS_LEFT, false, null, left.toArray(new String[0]), null);
         }
+        if (!joined.isEmpty()) {
+            events.publish(EventType.USERS_JOINED, false, null, joined.toArray(new String[0]), null);
+        }
+        onUsersList(users);
     }
 
     /**
-     * Unregister an event listener
+     * Called for a server response no handler has been registered for.
      *
-     * @param listener
+     * @param line The received line
      */
-    public void removeListener(ChatListener listener) {
-        listeners.remove(listener);
+    private void onUnknownCommand(ServerLine line) {
+        ClientLog.warn("Unknown command from server: " + line.getCommand());
+    }
+
+    /**
+     * Set what happens to events of a type when the listeners can't keep up with the server.
+     * By default the user list and supported command events are coalesced (only the latest is
+     * delivered), and all the other events use {@link EventPolicy#BLOCK}, on both transports.
+     * Messages are only dropped if {@link EventPolicy#DROP_OLDEST} is set for them here; the
+     * dropped ones are counted by getDroppedEventCount().
+     * <p>
+     * In NIO mode no policy stops the shared selector thread: when the queue is nearly full,
+     * reading the socket of this client is paused until the listeners have caught up.
+     *
+     * @param type   The event type
+     * @param policy The policy to use for that type
+     */
+    public void setEventPolicy(EventType type, EventPolicy policy) {
+        events.setPolicy(type, policy);
+    }
+
+    /**
+     * @return Number of events which were not delivered because of the DROP_OLDEST policy
+     */
+    public long getDroppedEventCount() {
+        return events.getDroppedCount();
+    }
+
+    /**
+     * @return Number of events which were merged into a later event because of the COALESCE policy
+     */
+    public long getCoalescedEventCount() {
+        return events.getCoalescedCount();
+    }
+
+    /**
+     * @param rtt Round-trip time of a command, or null if no command was waiting for the reply
+     */
+    private void recordReplyLatency(Duration rtt) {
+        if (rtt != null) {
+            metrics.replyLatency.record(rtt.toNanos());
+        }
+    }
+
+    /**
+     * Get the metrics of this client: bytes and commands sent and received, reply and listener
+     * latencies and queue depths. While connected, they are also published over JMX.
+     *
+     * @return The metrics
+     */
+    public ClientMetricsMBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Number of received lines per command word
+     */
+    Map<String, Long> getReceivedCounts() {
+        return dispatcher.getCounts();
+    }
+
+    /**
+     * @return The compression codec of the current or last connection, null if not compressed
+     */
+    DeflateCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return The time spent in the methods of each registered listener
+     */
+    Map<String, LatencyHistogram> getListenerLatencies() {
+        return events.getListenerLatencies();
+    }
+
+    /**
+     * @return Number of events waiting for the listeners
+     */
+    int getEventQueueDepth() {
+        return events.size();
+    }
+
+    /**
+     * @return Number of bytes queued for sending
+     */
+    long getOutboundPendingBytes() {
+        OutboundQueue queue = outboundQueue;
+        return queue != null ? queue.getPendingBytes() : 0;
+    }
+
+    /**
+     * @return Number of commands in the outbox, waiting for a reconnect
+     */
+    int getOutboxSize() {
+        synchronized (outbox) {
+            return outbox.size();
+        }
+    }
+
+    /**
+     * @return Number of commands waiting for a reply from the server
+     */
+    int getRepliesPending() {
+        return messageReplies.size() + loginReplies.size() + modeReplies.size();
     }
 
     /**
-     * Log a message to the system console.
+     * Register a new listener for events (login result, incoming message, etc). The listener
+     * methods are called on a thread of the shared event pool, one event at a time. Can be called
+     * from any thread.
      *
-     * @param message The message to be logged (printed).
+     * @param listener
      */
-    private static void log(String message) {
-        String threadId = "THREAD #" + Thread.currentThread().getId() + ": ";
-        System.out.println(threadId + message);
+    public void addListener(ChatListener listener) {
+        events.addListener(listener);
     }
 
+    /**
+     * Unregister an event listener
+     *
+     * @param listener
+     */
+    public void removeListener(ChatListener listener) {
+        events.removeListener(listener);
+    }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////
     // The following methods are all event-notificators - notify all the listeners about a specific event.
-    // By "event" here we mean "information received from the chat server".
+    // By "event" here we mean "information received from the chat server". The events are handed
+    // over to the event bus, the listeners are called on its dispatcher thread.
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     /**
@@ -622,9 +1880,7 @@ public class TCPClient {
      * @param errMsg  Error message if any
      */
     private void onLoginResult(boolean success, String errMsg) {
-        for (ChatListener l : listeners) {
-            l.onLoginResult(success, errMsg);
-        }
+        events.publish(EventType.LOGIN_RESULT, success, errMsg, null, null);
     }
 
     /**
@@ -635,9 +1891,14 @@ public class TCPClient {
         // Step 4: Implement this method
         // Hint: all the onXXX() methods will be similar to onLoginResult()
         
-        for (ChatListener chatListener : listeners) {
-            chatListener.onDisconnect();
-        }
+        events.publish(EventType.DISCONNECT, false, null, null, null);
+    }
+
+    /**
+     * Notify listeners that a lost connection has been re-established automatically
+     */
+    private void onReconnected() {
+        events.publish(EventType.RECONNECTED, false, null, null, null);
     }
 
     /**
@@ -648,9 +1909,7 @@ public class TCPClient {
     private void onUsersList(String[] users) {
         // Step 5: Implement this method
         
-        for (ChatListener chatListener : listeners) {
-            chatListener.onUserList(users);
-        }
+        events.publish(EventType.USER_LIST, false, null, users, null);
     }
 
     /**
@@ -666,13 +1925,10 @@ public class TCPClient {
         //Creates the msg as its own class
         TextMessage textMessage = new TextMessage(sender, priv, text);
         
-        log("Recived the msg: " + textMessage.toString());
+        ClientLog.debug("Recived the msg: ", textMessage);
         
         //Notify the listeners
-        for (ChatListener chatListener : listeners) {
-            
-            chatListener.onMessageReceived(textMessage);
-        }
+        events.publish(EventType.MESSAGE, priv, null, null, textMessage);
         
     }
 
@@ -684,11 +1940,8 @@ public class TCPClient {
     private void onMsgError(String errMsg) {
         // Step 7: Implement this method
 
-        //Notify the listeners
-        for (ChatListener chatListener : listeners) {
-            //tells the listeners the error msg
-            chatListener.onMessageError(errMsg);
-        }
+        //Notify the listeners, tells them the error msg
+        events.publish(EventType.MESSAGE_ERROR, false, errMsg, null, null);
     }
 
     /**
@@ -698,11 +1951,8 @@ public class TCPClient {
      */
     private void onCmdError(String errMsg) {
         // Step 7: Implement this method
-        // Notify the listeners
-        for (ChatListener chatListener : listeners) {
-            //tells the listeners the error msg
-            chatListener.onCommandError(errMsg);
-        }
+        // Notify the listeners, tells them the error msg
+        events.publish(EventType.COMMAND_ERROR, false, errMsg, null, null);
     }
 
     /**
@@ -714,8 +1964,6 @@ public class TCPClient {
     private void onSupported(String[] commands) {
         // Step 8: Implement this method
         
-        for (ChatListener chatListener : listeners) {
-            chatListener.onSupportedCommands(commands);
-        }
+        events.publish(EventType.SUPPORTED_COMMANDS, false, null, commands, null);
     }
 }
@@ -0,0 +1,188 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The messages of the chat window. The history is kept in memory, and only a window of at most
+ * "retention" consecutive entries is kept in the observable list shown by the ListView. The window
+ * normally follows the newest entries; when the user scrolls past either end of it, the next page
+ * is copied in from the history and the entries at the other end are dropped. The cost of the
+ * ListView therefore depends on the retention, not on how long the window has been open.
+ * <p>
+ * The history holds at most "historyLimit" entries; beyond that the oldest ones are dropped.
+ * Nothing is written to disk, since the history contains the private messages.
+ * <p>
+ * Used on the JavaFX thread only.
+ */
+class Transcript {
+
+    private final ObservableList<TranscriptEntry> items = FXCollections.observableArrayList();
+    private final int retention;
+    private final int historyLimit;
+    // The whole history, oldest first
+    private final List<TranscriptEntry> history = new ArrayList<>();
+    // Index (in the history) of the first entry in the window
+    private int first = 0;
+
+    /**
+     * @param retention    Maximum number of entries in the window
+     * @param historyLimit Maximum number of entries in the history, at least the retention
+     */
+    Transcript(int retention, int historyLimit) {
+        if (retention < 1 || historyLimit < retention) {
+            throw new IllegalArgumentException("Invalid transcript retention: " + retention + ", " + historyLimit);
+        }
+        this.retention = retention;
+        this.historyLimit = historyLimit;
+    }
+
+    /**
+     * @return The entries in the window, to be shown by a ListView
+     */
+    ObservableList<TranscriptEntry> getItems() {
+        return items;
+    }
+
+    /**
+     * @return Number of entries in the history
+     */
+    int size() {
+        return history.size();
+    }
+
+    /**
+     * @return Index (in the history) of the first entry in the window
+     */
+    int getFirstIndex() {
+        return first;
+    }
+
+    /**
+     * @return True if the window contains the newest entry
+     */
+    boolean isAtEnd() {
+        return first + items.size() == history.size();
+    }
+
+    /**
+     * @return True if there are older entries than the ones in the window
+     */
+    boolean hasOlder() {
+        return first > 0;
+    }
+
+    /**
+     * Add an entry at the end of the history. It is added to the window only if the window is at
+     * the end; if the user is looking at older entries, the window does not move.
+     *
+     * @param entry The entry
+     */
+    void append(TranscriptEntry entry) {
+        appendAll(Collections.singletonList(entry));
+    }
+
+    /**
+     * Add entries at the end of the history, like append(), with a single change of the window.
+     *
+     * @param entries The entries, in order
+     */
+    void appendAll(List<TranscriptEntry> entries) {
+        boolean atEnd = isAtEnd();
+        history.addAll(entries);
+        if (atEnd) {
+            // Only the entries which will stay in the window are added
+            int skip = Math.max(0, entries.size() - retention);
+            items.addAll(entries.subList(skip, entries.size()));
+            first += skip;
+            trimStart();
+        }
+        trimHistory();
+    }
+
+    /**
+     * Copy older entries into the start of the window. Entries at the end of the window are
+     * dropped if it gets larger than the retention.
+     *
+     * @param count Maximum number of entries to copy
+     * @return Number of entries copied
+     */
+    int pageOlder(int count) {
+        int n = Math.min(count, first);
+        if (n == 0) {
+            return 0;
+        }
+        items.addAll(0, history.subList(first - n, first));
+        first -= n;
+        if (items.size() > retention) {
+            items.remove(retention, items.size());
+        }
+        return n;
+    }
+
+    /**
+     * Copy newer entries into the end of the window. Entries at the start of the window are
+     * dropped if it gets larger than the retention.
+     *
+     * @param count Maximum number of entries to copy
+     * @return Number of entries copied
+     */
+    int pageNewer(int count) {
+        int end = first + items.size();
+        int n = Math.min(count, history.size() - end);
+        if (n == 0) {
+            return 0;
+        }
+        items.addAll(history.subList(end, end + n));
+        trimStart();
+        return n;
+    }
+
+    /**
+     * Move the window to the newest entries.
+     */
+    void jumpToEnd() {
+        if (isAtEnd()) {
+            return;
+        }
+        int from = Math.max(0, history.size() - retention);
+        items.setAll(history.subList(from, history.size()));
+        first = from;
+    }
+
+    /**
+     * Drop entries from the start of the window until it fits in the retention.
+     */
+    private void trimStart() {
+        int excess = items.size() - retention;
+        if (excess > 0) {
+            items.remove(0, excess);
+            first += excess;
+        }
+    }
+
+    /**
+     * Drop the oldest entries of the history until it fits in the limit. At least an eighth of the
+     * limit is dropped at a time, so that the entries after them are not moved for every message.
+     */
+    private void trimHistory() {
+        int excess = history.size() - historyLimit;
+        if (excess <= 0) {
+            return;
+        }
+        int n = Math.min(history.size(), Math.max(excess, historyLimit / 8));
+        history.subList(0, n).clear();
+        first -= n;
+        if (first < 0) {
+            // The window showed some of the dropped entries: replace them with newer ones
+            int removed = Math.min(-first, items.size());
+            items.remove(0, removed);
+            first = 0;
+            pageNewer(removed);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+/**
+ * Shows one entry of the chat window. The ListView only creates as many cells as fit on the
+ * screen and reuses them while scrolling, so the nodes of a cell are created once and only
+ * their text and style change from entry to entry.
+ * <p>
+ * Messages we sent are shown on the right, received messages on the left with the sender above
+ * them, and warnings and information across the whole width.
+ */
+class TranscriptCell extends ListCell<TranscriptEntry> {
+
+    private final HBox message = new HBox();
+    private final VBox content = new VBox();
+    private final Label sender = new Label();
+    private final Label text = new Label();
+    private final Pane spacer = new Pane();
+
+    /**
+     * @param list The list the cell belongs to, long texts are wrapped at its width
+     */
+    TranscriptCell(ListView<TranscriptEntry> list) {
+        sender.getStyleClass().add("sender");
+        text.setWrapText(true);
+        // Leave room for the padding and the scroll bar
+        text.maxWidthProperty().bind(list.widthProperty().subtract(40));
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        spacer.setMinSize(10, 1);
+    }
+
+    @Override
+    protected void updateItem(TranscriptEntry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        setText(null);
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+        TextMessage msg = entry.getMessage();
+        text.setText(msg.getText());
+        text.getStyleClass().setAll("label", "message", entry.getKind().getStyleClass());
+        switch (entry.getKind()) {
+            case SENT:
+            case FAILED:
+                // Add empty space first (left), then the message (right)
+                content.getChildren().setAll(text);
+                message.getChildren().setAll(spacer, content);
+                break;
+            case RECEIVED:
+                if (msg.isPrivate()) {
+                    sender.setText("Private from " + msg.getSender() + ":");
+                    sender.getStyleClass().setAll("label", "sender", "private");
+                } else {
+                    sender.setText(msg.getSender() + ":");
+                    sender.getStyleClass().setAll("label", "sender");
+                }
+                // Add message first (left), then empty space (right)
+                content.getChildren().setAll(sender, text);
+                message.getChildren().setAll(content, spacer);
+                break;
+            default:
+                // A warning or information
+                content.getChildren().setAll(text);
+                message.getChildren().setAll(content);
+                break;
+        }
+        setGraphic(message);
+    }
+}
@@ -0,0 +1,53 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * One line of the chat window: a message together with how it is shown.
+ */
+class TranscriptEntry {
+
+    /**
+     * How the entry is shown. Each kind has its own style class in the style sheet.
+     */
+    enum Kind {
+        // A message we sent
+        SENT("sentMessage"),
+        // A message we tried to send without a connection
+        FAILED("failedMessage"),
+        // A message from another user
+        RECEIVED("otherMessage"),
+        // An error reported by the server or the client
+        WARNING("warning"),
+        // Other information, for example the supported commands
+        INFO("info");
+
+        private final String styleClass;
+
+        Kind(String styleClass) {
+            this.styleClass = styleClass;
+        }
+
+        String getStyleClass() {
+            return styleClass;
+        }
+    }
+
+    private final Kind kind;
+    private final TextMessage message;
+
+    /**
+     * @param kind    How the entry is shown
+     * @param message The message
+     */
+    TranscriptEntry(Kind kind, TextMessage message) {
+        this.kind = kind;
+        this.message = message;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    TextMessage getMessage() {
+        return message;
+    }
+}
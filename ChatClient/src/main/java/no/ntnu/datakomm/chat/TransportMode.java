@@ -0,0 +1,17 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The way a TCPClient talks to the socket. Selected when the client is constructed.
+ */
+public enum TransportMode {
+
+    /**
+     * Classic blocking java.net.Socket. Each client uses its own listener thread.
+     */
+    BLOCKING,
+
+    /**
+     * Non-blocking SocketChannel. All clients in this mode share one selector thread.
+     */
+    NIO
+}
@@ -0,0 +1,66 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * The users shown in the user panel, sorted by name (ignoring case). The list is changed with the
+ * joined/left diffs from the TcpClient: each user is inserted at, or removed from, the position
+ * found by a binary search, so an update costs O(changes * log users) comparisons and the list
+ * never has to be rebuilt or sorted again.
+ * <p>
+ * Used on the JavaFX thread only.
+ */
+class UserListModel {
+
+    private static final Comparator<String> ORDER =
+            Comparator.comparing((String name) -> name, String.CASE_INSENSITIVE_ORDER)
+                    .thenComparing(Comparator.naturalOrder());
+
+    private final ObservableList<String> users = FXCollections.observableArrayList();
+
+    /**
+     * @return The sorted users, to be shown by a ListView
+     */
+    ObservableList<String> getUsers() {
+        return users;
+    }
+
+    /**
+     * Add users who joined. Users already in the list are ignored.
+     *
+     * @param usernames The users
+     */
+    void addAll(String[] usernames) {
+        for (String user : usernames) {
+            int index = Collections.binarySearch(users, user, ORDER);
+            if (index < 0) {
+                users.add(-index - 1, user);
+            }
+        }
+    }
+
+    /**
+     * Remove users who left. Users not in the list are ignored.
+     *
+     * @param usernames The users
+     */
+    void removeAll(String[] usernames) {
+        for (String user : usernames) {
+            int index = Collections.binarySearch(users, user, ORDER);
+            if (index >= 0) {
+                users.remove(index);
+            }
+        }
+    }
+
+    /**
+     * Remove all users, for example when the connection is closed.
+     */
+    void clear() {
+        users.clear();
+    }
+}
@@ -0,0 +1,201 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Asks the server for the user list now and then, on the shared scheduler instead of a thread of
+ * its own. The interval adapts to how busy the chat is: it starts at the minimum, doubles after
+ * every user list reply which brought no change, up to the maximum, and drops back to the minimum
+ * as soon as a reply changes the list. While the window is idle (minimized) the maximum is used,
+ * and the list is polled at once when the window is back.
+ * <p>
+ * The interval is updated when the reply arrives, see userListReceived(); until then the next
+ * poll is scheduled with the current interval, so polling goes on if a reply is lost.
+ * <p>
+ * Polling stops when stop() is called or when the connection is no longer active.
+ */
+class UserListPoller {
+
+    private final Runnable poll;
+    private final BooleanSupplier active;
+    private final long minMillis;
+    private final long maxMillis;
+    private final ScheduledExecutorService scheduler;
+    // The clock, System::nanoTime except in tests
+    private final LongSupplier nanoTime;
+
+    // The next poll, null when stopped. Guarded by this
+    private ScheduledFuture<?> task;
+    // Incremented by start(), stop(), setIdle() and userListReceived(), so that a poll which was
+    // already running does not schedule another one. Guarded by this
+    private int generation = 0;
+    // Current interval between the polls. Guarded by this
+    private long interval;
+    // True if the list changed since the last reply. Guarded by this
+    private boolean changed = false;
+    // True while the window is minimized. Guarded by this
+    private boolean idle = false;
+    // When the last poll was sent. Guarded by this
+    private long lastPollNanos;
+
+    /**
+     * @param poll      Sends the request for the user list
+     * @param active    Tells if the connection is still active
+     * @param minMillis Interval while the list is changing
+     * @param maxMillis Interval while the list is stable or the window is idle
+     */
+    UserListPoller(Runnable poll, BooleanSupplier active, long minMillis, long maxMillis) {
+        this(poll, active, minMillis, maxMillis, ClientScheduler.get(), System::nanoTime);
+    }
+
+    /**
+     * @param poll      Sends the request for the user list
+     * @param active    Tells if the connection is still active
+     * @param minMillis Interval while the list is changing
+     * @param maxMillis Interval while the list is stable or the window is idle
+     * @param scheduler Runs the polls
+     * @param nanoTime  The clock, in nanoseconds
+     */
+    UserListPoller(Runnable poll, BooleanSupplier active, long minMillis, long maxMillis,
+                   ScheduledExecutorService scheduler, LongSupplier nanoTime) {
+        if (minMillis < 1 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid poll intervals: " + minMillis + ", " + maxMillis);
+        }
+        this.poll = poll;
+        this.active = active;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.scheduler = scheduler;
+        this.nanoTime = nanoTime;
+        this.interval = minMillis;
+    }
+
+    /**
+     * Start polling, with a poll right away. Does nothing if already polling.
+     */
+    synchronized void start() {
+        if (task == null) {
+            generation++;
+            interval = minMillis;
+            changed = false;
+            schedule(0);
+        }
+    }
+
+    /**
+     * Stop polling. The next poll is cancelled at once.
+     */
+    synchronized void stop() {
+        generation++;
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * @return True while polling
+     */
+    synchronized boolean isRunning() {
+        return task != null;
+    }
+
+    /**
+     * @return The current interval between the polls, in milliseconds
+     */
+    synchronized long getInterval() {
+        return idle ? maxMillis : interval;
+    }
+
+    /**
+     * The user list has changed. Must be called before userListReceived() for the same reply.
+     */
+    synchronized void listChanged() {
+        changed = true;
+    }
+
+    /**
+     * A user list reply has arrived: update the interval, and move the next poll to the new
+     * interval after the last one.
+     */
+    synchronized void userListReceived() {
+        interval = changed ? minMillis : Math.min(interval * 2, maxMillis);
+        changed = false;
+        if (task != null && !idle) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(nanoTime.getAsLong() - lastPollNanos);
+            reschedule(Math.max(0, interval - elapsed));
+        }
+    }
+
+    /**
+     * Tell if the window is idle (minimized). While idle, the list is polled at the maximum
+     * interval; when the window is back, it is polled at once.
+     *
+     * @param idle True when the window is idle
+     */
+    synchronized void setIdle(boolean idle) {
+        boolean wasIdle = this.idle;
+        this.idle = idle;
+        if (wasIdle && !idle && task != null) {
+            interval = minMillis;
+            reschedule(0);
+        }
+    }
+
+    /**
+     * Replace the next poll. Must be called with the lock held, while polling.
+     *
+     * @param delayMillis Delay until the new poll
+     */
+    private void reschedule(long delayMillis) {
+        // A new generation, in case a poll is running right now and would schedule the next one
+        generation++;
+        task.cancel(false);
+        schedule(delayMillis);
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void schedule(long delayMillis) {
+        int g = generation;
+        task = scheduler.schedule(() -> run(g), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the scheduler: poll, and schedule the next poll.
+     *
+     * @param g The generation this poll was scheduled for
+     */
+    private void run(int g) {
+        synchronized (this) {
+            if (g != generation) {
+                return;
+            }
+            if (!active.getAsBoolean()) {
+                // The connection is gone, start() is called again for the next one
+                task = null;
+                return;
+            }
+            lastPollNanos = nanoTime.getAsLong();
+        }
+        try {
+            // Not under the lock: the request may block on the socket
+            poll.run();
+        } catch (RuntimeException e) {
+            ClientLog.error("Could not poll the user list", e);
+        }
+        synchronized (this) {
+            if (g != generation) {
+                // The reply has arrived already and scheduled the next poll
+                return;
+            }
+            // Until the reply arrives and updates the interval
+            schedule(getInterval());
+        }
+    }
+}
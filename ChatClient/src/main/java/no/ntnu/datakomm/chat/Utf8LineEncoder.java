@@ -0,0 +1,207 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes outgoing command lines as UTF-8, terminated by a newline, or as binary frames (see
+ * {@link BinaryProtocol}). Plain ASCII text (the usual case) is copied byte by byte into a
+ * reusable scratch buffer; other text goes through a cached CharsetEncoder. Either way the only
+ * allocation per command is the resulting byte array.
+ * <p>
+ * Many commands can also be appended to one batch buffer, which is then sent as a single write.
+ * <p>
+ * Not thread safe: the client only uses it while holding its send lock.
+ */
+class Utf8LineEncoder {
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Receives the encoded text
+    private byte[] scratch = new byte[256];
+    // Receives the binary frame being built
+    private byte[] frame = new byte[256];
+    private int framePos;
+    // Receives the commands of a batch
+    private byte[] batch = new byte[1024];
+    private int batchPos;
+
+    /**
+     * Encode a line and add the newline.
+     *
+     * @param line The line, without newline
+     * @return The encoded bytes, ending with '\n'
+     */
+    byte[] encode(String line) {
+        int n = encodeText(line, 0, line.length(), 1);
+        scratch[n] = '\n';
+        return Arrays.copyOf(scratch, n + 1);
+    }
+
+    /**
+     * Encode a command as a binary frame. The arguments are split into the fields of the command.
+     *
+     * @param line The command in text form, for example "privmsg bob Hello"
+     * @return The frame
+     * @throws IllegalArgumentException When the command has no binary id
+     */
+    byte[] encodeFrame(String line) {
+        return Arrays.copyOf(frame, buildFrame(line));
+    }
+
+    /**
+     * Encode a command and append it to the batch being built.
+     *
+     * @param line   The command, without newline
+     * @param binary True to encode it as a binary frame, false as a text line
+     * @return Number of bytes appended
+     * @throws IllegalArgumentException When binary is true and the command has no binary id
+     */
+    int appendToBatch(String line, boolean binary) {
+        byte[] src;
+        int n;
+        if (binary) {
+            n = buildFrame(line);
+            src = frame;
+        } else {
+            n = encodeText(line, 0, line.length(), 1);
+            scratch[n++] = '\n';
+            src = scratch;
+        }
+        if (batch.length < batchPos + n) {
+            batch = Arrays.copyOf(batch, Math.max(batchPos + n, batch.length * 2));
+        }
+        System.arraycopy(src, 0, batch, batchPos, n);
+        batchPos += n;
+        return n;
+    }
+
+    /**
+     * @return The commands appended since the last call, in one array. The batch is emptied
+     */
+    byte[] takeBatch() {
+        byte[] bytes = Arrays.copyOf(batch, batchPos);
+        batchPos = 0;
+        return bytes;
+    }
+
+    /**
+     * Build a binary frame in the frame buffer.
+     *
+     * @param line The command in text form
+     * @return Length of the frame
+     */
+    private int buildFrame(String line) {
+        int wordEnd = line.indexOf(' ');
+        if (wordEnd < 0) {
+            wordEnd = line.length();
+        }
+        int id = BinaryProtocol.idOf(line.substring(0, wordEnd));
+        if (id < 0) {
+            throw new IllegalArgumentException("No binary framing for: " + line);
+        }
+        int arity = BinaryProtocol.arityOf(id);
+
+        // Count the fields first, the count comes before them
+        int argsStart = Math.min(wordEnd + 1, line.length());
+        int count = 0;
+        int pos = argsStart;
+        while (pos < line.length() && (arity < 0 || count < arity)) {
+            count++;
+            pos = fieldEnd(line, pos, arity < 0 || count < arity) + 1;
+        }
+
+        framePos = 0;
+        ensureFrameCapacity(1 + 5);
+        frame[framePos++] = (byte) id;
+        writeVarint(count);
+        pos = argsStart;
+        for (int i = 0; i < count; i++) {
+            int end = fieldEnd(line, pos, arity < 0 || i + 1 < arity);
+            int n = encodeText(line, pos, end, 0);
+            ensureFrameCapacity(5 + n);
+            writeVarint(n);
+            System.arraycopy(scratch, 0, frame, framePos, n);
+            framePos += n;
+            pos = end + 1;
+        }
+        return framePos;
+    }
+
+    /**
+     * @param line  The command
+     * @param start Index of the first char of a field
+     * @param split True if the field ends at the next space, false if it takes the rest of the line
+     * @return Index after the last char of the field
+     */
+    private static int fieldEnd(String line, int start, boolean split) {
+        if (!split) {
+            return line.length();
+        }
+        int space = line.indexOf(' ', start);
+        return space < 0 ? line.length() : space;
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            frame[framePos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        frame[framePos++] = (byte) value;
+    }
+
+    private void ensureFrameCapacity(int more) {
+        if (frame.length < framePos + more) {
+            frame = Arrays.copyOf(frame, Math.max(framePos + more, frame.length * 2));
+        }
+    }
+
+    /**
+     * Encode text[from, to) into the scratch buffer, starting at index 0.
+     *
+     * @param text  The text
+     * @param from  Index of the first char
+     * @param to    Index after the last char
+     * @param spare Number of bytes to leave free after the text
+     * @return Number of bytes written
+     */
+    private int encodeText(String text, int from, int to, int spare) {
+        int length = to - from;
+        // One byte per char is enough for ASCII
+        ensureCapacity(length + spare);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(from + i);
+            if (c >= 0x80) {
+                return encodeSlow(text, from, to, spare);
+            }
+            scratch[i] = (byte) c;
+        }
+        return length;
+    }
+
+    /**
+     * Encode text containing non-ASCII characters with the CharsetEncoder.
+     */
+    private int encodeSlow(String text, int from, int to, int spare) {
+        // At most 3 bytes per UTF-16 char (a surrogate pair is 4 bytes for 2 chars)
+        ensureCapacity((to - from) * 3 + spare);
+        ByteBuffer out = ByteBuffer.wrap(scratch);
+        // The buffer is large enough, so the encoder never reports an overflow. Bad characters
+        // (lone surrogates) are replaced
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text, from, to), out, true);
+        encoder.flush(out);
+        return out.position();
+    }
+
+    private void ensureCapacity(int size) {
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+        }
+    }
+}
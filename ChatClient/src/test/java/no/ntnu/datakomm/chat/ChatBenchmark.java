@@ -0,0 +1,175 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks of the client. They take a while and their timings depend on the machine, hence
+ * they are not part of the normal test run. Run them with: mvn test -Pbenchmark
+ * <p>
+ * Every benchmark prints its results, and asserts only what does not depend on the machine.
+ */
+public class ChatBenchmark {
+
+    // How many ms to sleep when waiting for a response from the local test server
+    private static final int LOCAL_SLEEP_TIME = 300;
+
+    /**
+     * Benchmark: receive the same broadcast traffic with and without compression and report the
+     * bytes on the wire and the CPU time used by the JVM.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void compressionBenchmark() throws Exception {
+        final int MESSAGES = 5000;
+        long[] plain = runBroadcastBenchmark(false, MESSAGES);
+        long[] compressed = runBroadcastBenchmark(true, MESSAGES);
+        System.out.println("Compression benchmark, " + MESSAGES + " broadcasts received:");
+        System.out.println("  plain:      " + plain[0] + " bytes, " + plain[1] / 1000000 + " ms CPU");
+        System.out.println("  compressed: " + compressed[0] + " bytes, " + compressed[1] / 1000000 + " ms CPU");
+        System.out.println("  saved " + (100 - compressed[0] * 100 / plain[0]) + "% of the bytes");
+        // Every message is received in full, and chat traffic compresses to less than half
+        assertTrue(plain[0] >= MESSAGES * "msg Broadcaster Hello everyone #0\n".length());
+        assertTrue(compressed[0] > 0);
+        assertTrue(compressed[0] < plain[0] / 2);
+    }
+
+    /**
+     * Let one client broadcast messages which look like chat traffic, received by another client.
+     *
+     * @param compression When true, both clients compress
+     * @param messages    Number of messages
+     * @return Bytes received by the receiving client, and CPU nanoseconds used by all threads
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    private static long[] runBroadcastBenchmark(boolean compression, int messages) throws Exception {
+        try (LocalChatServer server = new LocalChatServer(true)) {
+            TCPClient sender = new TCPClient();
+            TCPClient receiver = new TCPClient();
+            sender.setCompression(compression);
+            receiver.setCompression(compression);
+            DummyResponseCounter counter = new DummyResponseCounter();
+            receiver.addListener(counter);
+            assertTrue(sender.connect(server.getHost(), server.getPort()));
+            assertTrue(receiver.connect(server.getHost(), server.getPort()));
+            sender.startListenThread();
+            receiver.startListenThread();
+            assertNotNull(sender.loginAsync("Broadcaster").get(2, TimeUnit.SECONDS));
+            assertNotNull(receiver.loginAsync("Listener").get(2, TimeUnit.SECONDS));
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(compression, sender.isCompressionActive());
+            assertEquals(compression, receiver.isCompressionActive());
+
+            long bytesBefore = receiver.getMetrics().getBytesReceived();
+            long cpuBefore = allThreadsCpuNanos();
+            String[] phrases = {"Hello everyone", "Did you see the game yesterday?",
+                    "I will be late for the meeting", "The build is green again"};
+            CompletableFuture<Duration> last = null;
+            for (int i = 0; i < messages; i++) {
+                last = sender.sendPublicMessageAsync(phrases[i % phrases.length] + " #" + i);
+            }
+            last.get(10, TimeUnit.SECONDS);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (counter.msg < messages && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(messages, counter.msg);
+            long[] result = {receiver.getMetrics().getBytesReceived() - bytesBefore,
+                    allThreadsCpuNanos() - cpuBefore};
+            sender.disconnect();
+            receiver.disconnect();
+            return result;
+        }
+    }
+
+    /**
+     * Benchmark: parse the same received messages in the text protocol and in binary frames, and
+     * report the cost per message. Only the parsing is measured, no sockets are involved.
+     *
+     * @throws IOException When a frame is invalid
+     */
+    @Test
+    public void binaryFramingBenchmark() throws IOException {
+        final int MESSAGES = 200000;
+        final int ROUNDS = 5;
+        Utf8LineEncoder encoder = new Utf8LineEncoder();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            String line = "msg user" + (i % 20) + " Hello everyone, this is chat message number " + i;
+            text.write(encoder.encode(line));
+            frames.write(encoder.encodeFrame(line));
+        }
+        byte[] textBytes = text.toByteArray();
+        byte[] frameBytes = frames.toByteArray();
+
+        long textNanos = Long.MAX_VALUE;
+        long binaryNanos = Long.MAX_VALUE;
+        // The best of a few rounds, the first ones include the JIT warm-up
+        for (int round = 0; round < ROUNDS; round++) {
+            textNanos = Math.min(textNanos, parseMessages(textBytes, false, MESSAGES));
+            binaryNanos = Math.min(binaryNanos, parseMessages(frameBytes, true, MESSAGES));
+        }
+        System.out.println("Binary framing benchmark, " + MESSAGES + " messages parsed:");
+        System.out.println("  text:   " + textBytes.length + " bytes, " + textNanos / MESSAGES + " ns/message");
+        System.out.println("  binary: " + frameBytes.length + " bytes, " + binaryNanos / MESSAGES + " ns/message");
+        // parseMessages() checks that every message is parsed; the frames are also smaller
+        assertTrue(frameBytes.length < textBytes.length);
+    }
+
+    /**
+     * Feed received bytes through a LineFramer in socket-sized chunks and turn every line into
+     * a TextMessage, the way the message handler does.
+     *
+     * @param data     The received bytes
+     * @param binary   True if the bytes are binary frames
+     * @param messages Number of messages in the data
+     * @return The time used, in nanoseconds
+     * @throws IOException When a frame is invalid
+     */
+    private static long parseMessages(byte[] data, boolean binary, int messages) throws IOException {
+        final int CHUNK = 8 * 1024;
+        LineFramer framer = new LineFramer(StandardCharsets.UTF_8);
+        framer.setBinary(binary);
+        int parsed = 0;
+        long start = System.nanoTime();
+        for (int offset = 0; offset < data.length; offset += CHUNK) {
+            framer.feed(data, offset, Math.min(CHUNK, data.length - offset));
+            ServerLine line;
+            while ((line = framer.nextLine()) != null) {
+                TextMessage message = new TextMessage(line.getFirstArg(), false, line.getArgsAfterFirst());
+                if (message.getSender() != null && message.getText() != null) {
+                    parsed++;
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        assertEquals(messages, parsed);
+        return nanos;
+    }
+
+    /**
+     * @return Total CPU time used by all the live threads, in nanoseconds
+     */
+    private static long allThreadsCpuNanos() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threadBean.getAllThreadIds()) {
+            total += Math.max(0, threadBean.getThreadCpuTime(id));
+        }
+        return total;
+    }
+}
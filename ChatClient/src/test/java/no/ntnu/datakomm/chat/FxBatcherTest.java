@@ -0,0 +1,97 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FxBatcherTest {
+
+    /**
+     * Test the GUI update batching: a burst of updates from several threads schedules one task on
+     * the GUI thread, which applies all of them and then runs the after-drain task once.
+     *
+     * @throws InterruptedException When the threads are interrupted
+     */
+    @Test
+    public void testBurstIsOneDrain() throws InterruptedException {
+        List<Runnable> scheduled = new ArrayList<>();
+        List<Integer> applied = new ArrayList<>();
+        int[] drains = {0};
+        FxBatcher batcher = new FxBatcher(task -> {
+            synchronized (scheduled) {
+                scheduled.add(task);
+            }
+        }, () -> drains[0]++);
+
+        final int THREADS = 4;
+        final int UPDATES = 1000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < UPDATES; i++) {
+                    batcher.post(() -> applied.add(1));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Nothing ran yet, and only one drain task was scheduled for the whole burst
+        assertEquals(1, scheduled.size());
+        assertTrue(applied.isEmpty());
+        scheduled.remove(0).run();
+        assertEquals(THREADS * UPDATES, applied.size());
+        assertEquals(1, drains[0]);
+
+        // A later update schedules a new drain
+        batcher.post(() -> assertTrue(batcher.isDraining()));
+        assertEquals(1, scheduled.size());
+        scheduled.remove(0).run();
+        assertFalse(batcher.isDraining());
+        assertEquals(2, drains[0]);
+    }
+
+    /**
+     * Test that a drain applies only the updates queued when it started: those posted meanwhile,
+     * also by the updates themselves, wait for the next drain, which is scheduled at once.
+     */
+    @Test
+    public void testDrainIsBounded() {
+        List<Runnable> scheduled = new ArrayList<>();
+        List<String> applied = new ArrayList<>();
+        int[] drains = {0};
+        FxBatcher batcher = new FxBatcher(scheduled::add, () -> drains[0]++);
+
+        batcher.post(() -> {
+            applied.add("first");
+            // Like a producer posting while the JavaFX thread is draining
+            batcher.post(() -> applied.add("posted while draining"));
+        });
+        batcher.post(() -> applied.add("second"));
+        assertEquals(1, scheduled.size());
+        scheduled.remove(0).run();
+        assertEquals(List.of("first", "second"), applied);
+        assertEquals(1, drains[0]);
+
+        // The update posted during the drain scheduled the next one
+        assertEquals(1, scheduled.size());
+        scheduled.remove(0).run();
+        assertEquals(List.of("first", "second", "posted while draining"), applied);
+        assertEquals(2, drains[0]);
+        assertTrue(scheduled.isEmpty());
+
+        // A failing update does not stop the others
+        batcher.post(() -> {
+            throw new IllegalStateException("Broken update");
+        });
+        batcher.post(() -> applied.add("after the failure"));
+        scheduled.remove(0).run();
+        assertEquals("after the failure", applied.get(applied.size() - 1));
+        assertEquals(3, drains[0]);
+    }
+}
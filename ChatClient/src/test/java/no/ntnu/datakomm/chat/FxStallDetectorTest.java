@@ -0,0 +1,63 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FxStallDetectorTest {
+
+    /**
+     * Test the stall detector with a clock and a GUI thread driven by the test: a probe which
+     * waits longer than the threshold is counted as a stall, a short wait is not, and only one
+     * probe waits at a time.
+     */
+    @Test
+    public void testStallIsCounted() {
+        AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+        List<Runnable> fxTasks = new ArrayList<>();
+        FxStallDetector detector = new FxStallDetector(fxTasks::add, 100, clock::get);
+
+        // The GUI thread gets to the probe after 10 ms: not a stall
+        detector.probe();
+        assertEquals(1, fxTasks.size());
+        advance(clock, 10);
+        fxTasks.remove(0).run();
+        assertEquals(0, detector.getStallCount());
+
+        // The GUI thread is blocked: the probe still waiting is not posted again
+        detector.probe();
+        advance(clock, 150);
+        detector.probe();
+        advance(clock, 150);
+        detector.probe();
+        assertEquals(1, fxTasks.size());
+        assertEquals(0, detector.getStallCount());
+
+        // Free again after 400 ms
+        advance(clock, 100);
+        fxTasks.remove(0).run();
+        assertEquals(1, detector.getStallCount());
+        assertEquals(400, detector.getMaxStallMillis());
+
+        // The next probe is posted as usual
+        detector.probe();
+        assertEquals(1, fxTasks.size());
+        advance(clock, 50);
+        fxTasks.remove(0).run();
+        assertEquals(1, detector.getStallCount());
+        assertEquals(400, detector.getMaxStallMillis());
+    }
+
+    /**
+     * @param clock  The test clock, in nanoseconds
+     * @param millis Time to move it forward
+     */
+    private static void advance(AtomicLong clock, long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
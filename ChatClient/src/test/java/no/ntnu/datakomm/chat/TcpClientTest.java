@@ -4,8 +4,29 @@ import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
 import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
 import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
 import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 public class TcpClientTest {
@@ -16,6 +37,9 @@ public class TcpClientTest {
     // How many ms to sleep when waiting for server response to arrive
     private static final int THREAD_SLEEP_TIME = 2000;
 
+    // How many ms to sleep when waiting for a response from the local test server
+    private static final int LOCAL_SLEEP_TIME = 300;
+
     /**
      * Test if opening and closing connection works
      */
@@ -302,4 +326,1567 @@ public class TcpClientTest {
         // Disconnect all clients
         c1.disconnect();
     }
+
+    /**
+     * Test that several clients in NIO mode, sharing one selector thread, can log in and exchange
+     * public and private messages.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testNioTransport() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient c1 = new TCPClient(TransportMode.NIO);
+            TCPClient c2 = new TCPClient(TransportMode.NIO);
+            assertFalse(c1.isConnectionActive());
+            assertTrue(c1.connect(server.getHost(), server.getPort()));
+            assertTrue(c2.connect(server.getHost(), server.getPort()));
+            assertTrue(c1.isConnectionActive());
+
+            DummyResponseCounter counter = new DummyResponseCounter();
+            DummyMsgReceiver rec2 = new DummyMsgReceiver();
+            c1.addListener(counter);
+            c2.addListener(rec2);
+            c1.startListenThread();
+            c2.startListenThread();
+
+            c1.tryLogin("NioUser1");
+            c2.tryLogin("NioUser2");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(1, counter.loginSuccess);
+
+            final String MSG_TEXT = "Hello from the selector thread";
+            assertTrue(c1.sendPublicMessage(MSG_TEXT));
+            assertTrue(c1.sendPrivateMessage("NioUser2", MSG_TEXT));
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(rec2.hasReceived(new TextMessage("NioUser1", false, MSG_TEXT)));
+            assertTrue(rec2.hasReceived(new TextMessage("NioUser1", true, MSG_TEXT)));
+
+            c1.disconnect();
+            c2.disconnect();
+            assertFalse(c1.isConnectionActive());
+            // The event is delivered on the event thread
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(1, counter.disconn);
+        }
+    }
+
+    /**
+     * Test that a handler failing on the shared selector thread only closes its own connection:
+     * the other NIO clients keep working.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testNioHandlerFailureIsIsolated() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient failing = new TCPClient(TransportMode.NIO);
+            TCPClient other = new TCPClient(TransportMode.NIO);
+            failing.registerCommandHandler("boom", line -> {
+                throw new IllegalStateException("Handler bug");
+            });
+            DummyResponseCounter counter = new DummyResponseCounter();
+            DummyMsgReceiver receiver = new DummyMsgReceiver();
+            failing.addListener(counter);
+            other.addListener(receiver);
+            assertTrue(failing.connect(server.getHost(), server.getPort()));
+            assertTrue(other.connect(server.getHost(), server.getPort()));
+            failing.startListenThread();
+            other.startListenThread();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            server.sendToAll("boom");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertFalse(failing.isConnectionActive());
+            assertEquals(1, counter.disconn);
+
+            // The selector thread survived and still serves the other client
+            assertTrue(other.isConnectionActive());
+            server.sendToAll("msg Sender After the failure");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(receiver.hasReceived(new TextMessage("Sender", false, "After the failure")));
+            other.disconnect();
+        }
+    }
+
+    /**
+     * Test that a NIO client with a stuck listener does not stop the shared selector thread: the
+     * other NIO clients still get their messages, reading the socket of the stuck client is paused
+     * instead, and none of its messages are lost.
+     *
+     * @throws Exception When the local server can't be started or a reply does not arrive
+     */
+    @Test
+    public void testNioSlowListenerDoesNotStallOthers() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient stuck = new TCPClient(TransportMode.NIO);
+            TCPClient other = new TCPClient(TransportMode.NIO);
+            CountDownLatch release = new CountDownLatch(1);
+            DummyResponseCounter stuckCounter = new DummyResponseCounter() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    super.onMessageReceived(message);
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            CountDownLatch allReceived = new CountDownLatch(1);
+            final int MESSAGES = 3000;
+            DummyResponseCounter otherCounter = new DummyResponseCounter() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    super.onMessageReceived(message);
+                    if (msg == MESSAGES) {
+                        allReceived.countDown();
+                    }
+                }
+            };
+            stuck.addListener(stuckCounter);
+            other.addListener(otherCounter);
+            for (TCPClient c : new TCPClient[]{stuck, other}) {
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.startListenThread();
+            }
+            stuck.loginAsync("Stuck").get(2, TimeUnit.SECONDS);
+            other.loginAsync("Other").get(2, TimeUnit.SECONDS);
+
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    server.sendToAll("msg Flooder Message " + i);
+                }
+                // Everything reaches the other client while the first listener is still stuck
+                assertTrue(allReceived.await(5, TimeUnit.SECONDS));
+                assertEquals(1, stuckCounter.msg);
+
+                // Once the listener is free, the stuck client gets all its messages too
+                release.countDown();
+                long deadline = System.currentTimeMillis() + 5000;
+                while (stuckCounter.msg < MESSAGES && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(MESSAGES, stuckCounter.msg);
+                assertEquals(0, stuck.getDroppedEventCount());
+            } finally {
+                release.countDown();
+                stuck.disconnect();
+                other.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test that clients do not hold an event thread of their own: the listeners are called on a
+     * shared pool, which only has threads while events are being delivered.
+     */
+    @Test
+    public void testEventThreadsAreShared() {
+        int before = countThreads("chat-events");
+        List<TCPClient> clients = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            clients.add(new TCPClient());
+        }
+        assertEquals(before, countThreads("chat-events"));
+    }
+
+    /**
+     * Test that responses of all types are framed and parsed correctly by the blocking transport,
+     * using the local test server.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testLocalServerResponses() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient c1 = new TCPClient();
+            TCPClient c2 = new TCPClient();
+            assertTrue(c1.connect(server.getHost(), server.getPort()));
+            assertTrue(c2.connect(server.getHost(), server.getPort()));
+            c1.startListenThread();
+            c2.startListenThread();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            DummyUserListingReceiver userListing = new DummyUserListingReceiver();
+            DummySupportedReceiver supported = new DummySupportedReceiver();
+            DummyMsgReceiver rec2 = new DummyMsgReceiver();
+            c1.addListener(counter);
+            c1.addListener(userListing);
+            c1.addListener(supported);
+            c2.addListener(rec2);
+
+            c1.tryLogin("Bad username");
+            c1.tryLogin("LocalUser1");
+            c2.tryLogin("LocalUser2");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(1, counter.loginSuccess);
+            assertEquals(1, counter.loginError);
+
+            // The message text contains spaces, only the first one separates sender and text
+            final String MSG_TEXT = "A text with  several spaces ";
+            c1.sendPublicMessage(MSG_TEXT);
+            c1.sendPrivateMessage("NoSuchUser", MSG_TEXT);
+            c1.refreshUserList();
+            c1.askSupportedCommands();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(rec2.hasReceived(new TextMessage("LocalUser1", false, MSG_TEXT)));
+            assertEquals(1, counter.msgErr);
+            assertTrue(userListing.contains("LocalUser1"));
+            assertTrue(userListing.contains("LocalUser2"));
+            assertTrue(supported.contains("privmsg"));
+
+            c1.disconnect();
+            c2.disconnect();
+        }
+    }
+
+    /**
+     * Test that handlers can be registered for new server commands, and that commands are matched
+     * on the whole command word.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testCustomCommandHandler() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            DummyMsgReceiver receiver = new DummyMsgReceiver();
+            client.addListener(receiver);
+            List<String> jokes = new ArrayList<>();
+            client.registerCommandHandler("joke", line -> jokes.add(line.getArgs()));
+            client.startListenThread();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            server.sendToAll("joke Why do programmers prefer dark mode?");
+            // Neither of these must be handled as a "msg"
+            server.sendToAll("msgs Sender Text");
+            server.sendToAll("unknowncommand");
+            server.sendToAll("msg Sender Text");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            assertEquals(1, jokes.size());
+            assertEquals("Why do programmers prefer dark mode?", jokes.get(0));
+            assertTrue(receiver.hasReceived(new TextMessage("Sender", false, "Text")));
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test that a burst of messages is coalesced into a few socket writes, and that nothing is
+     * lost or reordered on the way.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testWriteBatching() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient sender = new TCPClient();
+            TCPClient receiver = new TCPClient();
+            sender.setWriteBatching(64 * 1024, 100);
+            assertTrue(sender.connect(server.getHost(), server.getPort()));
+            assertTrue(receiver.connect(server.getHost(), server.getPort()));
+            DummyMsgReceiver rec = new DummyMsgReceiver();
+            receiver.addListener(rec);
+            receiver.startListenThread();
+            sender.tryLogin("BatchSender");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            int readsBefore = server.getReadCount();
+            final int MSG_COUNT = 200;
+            for (int i = 0; i < MSG_COUNT; i++) {
+                assertTrue(sender.sendPublicMessage("Burst message " + i));
+            }
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            // With 100 ms linger the whole burst fits into very few writes
+            assertTrue(server.getReadCount() - readsBefore < 10);
+            for (int i = 0; i < MSG_COUNT; i++) {
+                assertTrue(rec.hasReceived(new TextMessage("BatchSender", false, "Burst message " + i)));
+            }
+            sender.disconnect();
+            receiver.disconnect();
+        }
+    }
+
+    /**
+     * Test that pipelined asynchronous sends are matched with their msgok/msgerr replies in order.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testAsyncAcknowledgements() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+
+            CompletableFuture<Duration> badLogin = client.loginAsync("Bad username");
+            CompletableFuture<Duration> login = client.loginAsync("AsyncUser");
+            CompletableFuture<Duration> ack1 = client.sendPublicMessageAsync("First");
+            CompletableFuture<Duration> err = client.sendPrivateMessageAsync("NoSuchUser", "Second");
+            CompletableFuture<Duration> ack2 = client.sendPublicMessageAsync("Third");
+
+            assertTrue(login.get(2, TimeUnit.SECONDS).toNanos() > 0);
+            assertNotNull(ack1.get(2, TimeUnit.SECONDS));
+            assertNotNull(ack2.get(2, TimeUnit.SECONDS));
+            try {
+                err.get(2, TimeUnit.SECONDS);
+                fail("A private message to an unknown user must fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ServerErrorException);
+            }
+            assertTrue(badLogin.isCompletedExceptionally());
+
+            // Futures still waiting when the connection closes must not hang
+            client.disconnect();
+            assertTrue(client.sendPublicMessageAsync("Too late").isCompletedExceptionally());
+        }
+    }
+
+    /**
+     * Test that the listener thread does not spin when the server closes the connection: the
+     * listeners get exactly one onDisconnect and the listener thread stops using CPU.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testRemoteCloseDoesNotSpin() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            server.disconnectAll();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertFalse(client.isConnectionActive());
+            assertEquals(1, counter.disconn);
+
+            // Measure how much CPU the listener threads use while nothing happens
+            final long MEASURE_TIME_MS = 500;
+            long cpuBefore = listenerThreadsCpuNanos();
+            Thread.sleep(MEASURE_TIME_MS);
+            long cpuUsed = listenerThreadsCpuNanos() - cpuBefore;
+            assertTrue("Listener threads used " + cpuUsed / 1000000 + " ms CPU while idle",
+                    cpuUsed < TimeUnit.MILLISECONDS.toNanos(MEASURE_TIME_MS) / 10);
+
+            client.disconnect();
+            assertEquals(1, counter.disconn);
+        }
+    }
+
+    /**
+     * Test that messages sent while the connection is lost are kept in the outbox and delivered
+     * after the client has reconnected and logged in again.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testReconnectReplaysOutbox() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            client.setReconnectPolicy(new ReconnectPolicy(300, 1000, 2.0, 0, 5));
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            assertNotNull(client.loginAsync("Reconnecter").get(2, TimeUnit.SECONDS));
+
+            server.disconnectAll();
+            Thread.sleep(LOCAL_SLEEP_TIME / 3);
+            assertTrue(client.isReconnecting());
+
+            // Someone listening for the replayed messages
+            TCPClient receiver = new TCPClient();
+            DummyResponseCounter receiverCounter = new DummyResponseCounter();
+            receiver.addListener(receiverCounter);
+            assertTrue(receiver.connect(server.getHost(), server.getPort()));
+            receiver.startListenThread();
+            assertNotNull(receiver.loginAsync("Receiver").get(2, TimeUnit.SECONDS));
+
+            assertTrue(client.sendPublicMessage("Queued one"));
+            // Invalid messages of a batch fail at once instead of waiting in the outbox
+            List<CompletableFuture<Duration>> batch = client.sendBatch(Arrays.asList(
+                    OutgoingMessage.publicMessage("Queued batch"),
+                    OutgoingMessage.privateMessage("No one", "Invalid recipient"),
+                    OutgoingMessage.publicMessage("Two\nlines")));
+            assertFalse(batch.get(0).isDone());
+            assertTrue(batch.get(1).isCompletedExceptionally());
+            assertTrue(batch.get(2).isCompletedExceptionally());
+            CompletableFuture<Duration> ack = client.sendPublicMessageAsync("Queued two");
+            assertNotNull(ack.get(5, TimeUnit.SECONDS));
+            assertNotNull(batch.get(0).get(5, TimeUnit.SECONDS));
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            assertFalse(client.isReconnecting());
+            assertTrue(client.isConnectionActive());
+            assertEquals(1, counter.reconnected);
+            assertEquals(3, receiverCounter.msg);
+            assertEquals(0, counter.msgErr);
+
+            // A disconnect requested by the user does not reconnect
+            client.disconnect();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertFalse(client.isReconnecting());
+            assertFalse(client.isConnectionActive());
+            receiver.disconnect();
+        }
+    }
+
+    /**
+     * Test that the outbox is not sent when the login is refused after a reconnect, because the
+     * name was taken meanwhile: the queued messages fail instead of going out on a connection
+     * which is not logged in.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testReconnectLoginRefused() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            client.setReconnectPolicy(new ReconnectPolicy(300, 1000, 2.0, 0, 5));
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            assertNotNull(client.loginAsync("Twin").get(2, TimeUnit.SECONDS));
+
+            server.disconnectAll();
+            Thread.sleep(LOCAL_SLEEP_TIME / 3);
+            assertTrue(client.isReconnecting());
+
+            // Someone else takes the name while the client is away
+            TCPClient other = new TCPClient();
+            DummyResponseCounter otherCounter = new DummyResponseCounter();
+            other.addListener(otherCounter);
+            assertTrue(other.connect(server.getHost(), server.getPort()));
+            other.startListenThread();
+            assertNotNull(other.loginAsync("Twin").get(2, TimeUnit.SECONDS));
+
+            CompletableFuture<Duration> queued = client.sendPublicMessageAsync("Queued");
+            try {
+                queued.get(5, TimeUnit.SECONDS);
+                fail("The queued message was sent without a login");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertTrue(e.getCause().getCause() instanceof ServerErrorException);
+            }
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertFalse(client.isReconnecting());
+            assertTrue(client.isConnectionActive());
+            assertEquals(0, otherCounter.msg);
+
+            client.disconnect();
+            other.disconnect();
+        }
+    }
+
+    /**
+     * Test that a listener which blocks does not stop the client from reading the socket, and that
+     * listeners can be added and removed while events are delivered.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testSlowListenerDoesNotBlockReading() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            CountDownLatch release = new CountDownLatch(1);
+            DummyResponseCounter counter = new DummyResponseCounter() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    super.onMessageReceived(message);
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            client.addListener(counter);
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            assertNotNull(client.loginAsync("Slow").get(2, TimeUnit.SECONDS));
+
+            // The listener is now stuck in onMessageReceived
+            server.sendToAll("msg Someone Hello");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(1, counter.msg);
+
+            // Replies are still read and matched while the listener is stuck
+            assertNotNull(client.sendPublicMessageAsync("Still reading").get(2, TimeUnit.SECONDS));
+
+            // Listeners can be changed from another thread while events are waiting
+            for (int i = 0; i < 100; i++) {
+                DummyResponseCounter other = new DummyResponseCounter();
+                client.addListener(other);
+                server.sendToAll("cmderr unknown command");
+                client.removeListener(other);
+            }
+
+            release.countDown();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(100, counter.cmdErr);
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test the event policies while the listener is stuck: user lists are coalesced into one,
+     * and messages beyond the queue capacity are dropped when the policy allows it.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testEventPolicies() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            client.setEventPolicy(EventType.MESSAGE, EventPolicy.DROP_OLDEST);
+            CountDownLatch stuck = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            DummyResponseCounter counter = new DummyResponseCounter() {
+                @Override
+                public void onCommandError(String errMsg) {
+                    super.onCommandError(errMsg);
+                    stuck.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            client.addListener(counter);
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+
+            // The listener gets stuck on the first event. Wait for it, so that the error is not
+            // taken as the reply to the login below
+            server.sendToAll("cmderr stuck");
+            assertTrue(stuck.await(2, TimeUnit.SECONDS));
+            final int USER_LISTS = 50;
+            for (int i = 0; i < USER_LISTS; i++) {
+                server.sendToAll("users A B C" + i);
+            }
+            final int MESSAGES = 3000;
+            for (int i = 0; i < MESSAGES; i++) {
+                server.sendToAll("msg Flooder Message " + i);
+            }
+            // The client keeps reading: the reply to this command arrives after the flood
+            assertTrue(client.loginAsync("Reader").get(5, TimeUnit.SECONDS).toNanos() > 0);
+
+            release.countDown();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(1, counter.userList);
+            assertEquals(USER_LISTS - 1, client.getCoalescedEventCount());
+            assertTrue(client.getDroppedEventCount() > 0);
+            assertEquals(MESSAGES, counter.msg + client.getDroppedEventCount());
+            assertEquals(1, counter.loginSuccess);
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test that a coalesced event is delivered after the events published before it, not in the
+     * place of the event it replaced.
+     *
+     * @throws InterruptedException When the test is interrupted while waiting
+     */
+    @Test
+    public void testEventCoalesceKeepsOrder() throws InterruptedException {
+        EventBus bus = new EventBus(16, new LatencyHistogram());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        bus.addListener(new DummyResponseCounter() {
+            @Override
+            public void onCommandError(String errMsg) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onUserList(String[] usernames) {
+                delivered.add("users " + String.join(" ", usernames));
+            }
+
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                delivered.add("msg " + message.getText());
+                if (message.getText().equals("last")) {
+                    done.countDown();
+                }
+            }
+        });
+        // The listener is stuck on the first event while the others are published
+        bus.publish(EventType.COMMAND_ERROR, false, "stuck", null, null);
+        bus.publish(EventType.USER_LIST, false, null, new String[]{"A"}, null);
+        bus.publish(EventType.MESSAGE, false, null, null, new TextMessage("A", false, "first"));
+        bus.publish(EventType.USER_LIST, false, null, new String[]{"A", "B"}, null);
+        bus.publish(EventType.MESSAGE, false, null, null, new TextMessage("B", false, "last"));
+        release.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("msg first", "users A B", "msg last"), delivered);
+        assertEquals(1, bus.getCoalescedCount());
+    }
+
+    /**
+     * Test that an event of a blocking type does not wait behind droppable events: a full ring of
+     * messages makes room for it.
+     *
+     * @throws InterruptedException When the test is interrupted while waiting
+     */
+    @Test
+    public void testEventBlockingTypeMakesRoom() throws InterruptedException {
+        EventBus bus = new EventBus(16, new LatencyHistogram());
+        bus.setPolicy(EventType.MESSAGE, EventPolicy.DROP_OLDEST);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch lost = new CountDownLatch(1);
+        bus.addListener(new DummyResponseCounter() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onDisconnect() {
+                lost.countDown();
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            bus.publish(EventType.MESSAGE, false, null, null, new TextMessage("A", false, "Message " + i));
+        }
+        Thread publisher = new Thread(() -> bus.publish(EventType.DISCONNECT, false, null, null, null));
+        publisher.start();
+        publisher.join(2000);
+        try {
+            assertFalse(publisher.isAlive());
+        } finally {
+            release.countDown();
+        }
+        assertTrue(lost.await(2, TimeUnit.SECONDS));
+        assertTrue(bus.getDroppedCount() > 0);
+    }
+
+    /**
+     * Test the check of a reader which must not wait: it is told to pause before the ring is full,
+     * is resumed once the listener has caught up, and is not paused while droppable events can
+     * make room.
+     *
+     * @throws InterruptedException When the test is interrupted while waiting
+     */
+    @Test
+    public void testEventPauseWhenFull() throws InterruptedException {
+        EventBus bus = new EventBus(16, new LatencyHistogram());
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch resumed = new CountDownLatch(1);
+        bus.addListener(new DummyResponseCounter() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                stuck.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        // The listener is stuck on the first event, the others stay in the ring
+        bus.publish(EventType.MESSAGE, false, null, null, new TextMessage("A", false, "First"));
+        assertTrue(stuck.await(2, TimeUnit.SECONDS));
+        int published = 0;
+        while (!bus.pauseWhenFull(4, resumed::countDown)) {
+            bus.publish(EventType.MESSAGE, false, null, null, new TextMessage("A", false, "Message " + published));
+            published++;
+            assertTrue(published <= 16);
+        }
+        // Paused with room for less than 4 events, but never waiting in publish()
+        assertTrue(bus.size() > 12 && bus.size() <= 16);
+        assertEquals(1, resumed.getCount());
+
+        // Droppable events count as room
+        bus.setPolicy(EventType.MESSAGE, EventPolicy.DROP_OLDEST);
+        assertFalse(bus.pauseWhenFull(4, resumed::countDown));
+        bus.setPolicy(EventType.MESSAGE, EventPolicy.BLOCK);
+        assertTrue(bus.pauseWhenFull(4, resumed::countDown));
+
+        release.countDown();
+        assertTrue(resumed.await(2, TimeUnit.SECONDS));
+        assertEquals(0, bus.getDroppedCount());
+    }
+
+    /**
+     * Test the connection state machine: the states follow the connection, a second connect is
+     * refused, and many threads closing the connection at once cause exactly one onDisconnect.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testConnectionStates() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            assertEquals(ConnectionState.CLOSED, client.getConnectionState());
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            assertEquals(ConnectionState.CONNECTED, client.getConnectionState());
+            assertFalse(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            assertNotNull(client.loginAsync("StateUser").get(2, TimeUnit.SECONDS));
+            assertEquals(ConnectionState.LOGGED_IN, client.getConnectionState());
+
+            // Close from many threads at once, while the server also closes the socket
+            final int THREADS = 8;
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    client.disconnect();
+                });
+                t.start();
+                threads.add(t);
+            }
+            start.countDown();
+            server.disconnectAll();
+            for (Thread t : threads) {
+                t.join(2000);
+                assertFalse(t.isAlive());
+            }
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(ConnectionState.CLOSED, client.getConnectionState());
+            assertFalse(client.isConnectionActive());
+            assertEquals(1, counter.disconn);
+
+            // The client can connect again after closing
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test that disconnect() cancels a connect() still in progress, on both transports. The
+     * server never accepts and its backlog is full, so the connects hang until cancelled.
+     *
+     * @throws Exception When the server socket can't be opened or the test is interrupted
+     */
+    @Test
+    public void testConnectionStatesCancelConnect() throws Exception {
+        try (ServerSocket full = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            List<Socket> backlog = new ArrayList<>();
+            try {
+                for (int i = 0; i < 8; i++) {
+                    Socket s = new Socket();
+                    s.connect(full.getLocalSocketAddress(), 200);
+                    backlog.add(s);
+                }
+            } catch (IOException e) {
+                // The backlog is full
+            }
+            for (TransportMode mode : TransportMode.values()) {
+                TCPClient client = new TCPClient(mode);
+                CompletableFuture<Boolean> connected = CompletableFuture.supplyAsync(
+                        () -> client.connect("127.0.0.1", full.getLocalPort()));
+                while (client.getConnectionState() != ConnectionState.CONNECTING) {
+                    Thread.sleep(1);
+                }
+                client.disconnect();
+                assertFalse(connected.get(2, TimeUnit.SECONDS));
+                assertEquals(ConnectionState.CLOSED, client.getConnectionState());
+            }
+            for (Socket s : backlog) {
+                s.close();
+            }
+        }
+    }
+
+    /**
+     * Test the log levels: messages below the level are disabled, OFF disables everything.
+     */
+    @Test
+    public void testClientLogLevels() {
+        ClientLog.Level before = ClientLog.getLevel();
+        try {
+            ClientLog.setLevel(ClientLog.Level.WARN);
+            assertFalse(ClientLog.isEnabled(ClientLog.Level.DEBUG));
+            assertFalse(ClientLog.isEnabled(ClientLog.Level.INFO));
+            assertTrue(ClientLog.isEnabled(ClientLog.Level.WARN));
+            assertTrue(ClientLog.isEnabled(ClientLog.Level.ERROR));
+
+            ClientLog.setLevel(ClientLog.Level.OFF);
+            assertFalse(ClientLog.isEnabled(ClientLog.Level.ERROR));
+            assertFalse(ClientLog.isEnabled(ClientLog.Level.OFF));
+        } finally {
+            ClientLog.setLevel(before);
+        }
+    }
+
+    /**
+     * Test that the metrics count the traffic and are readable over JMX while connected.
+     *
+     * @throws Exception When the local server can't be started, or JMX fails
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            client.addListener(new DummyResponseCounter());
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            assertNotNull(client.loginAsync("MetricUser").get(2, TimeUnit.SECONDS));
+            final int MESSAGES = 20;
+            CompletableFuture<Duration> last = null;
+            for (int i = 0; i < MESSAGES; i++) {
+                last = client.sendPublicMessageAsync("Message " + i);
+            }
+            assertNotNull(last.get(2, TimeUnit.SECONDS));
+            client.askSupportedCommands();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            // Besides the messages: async (sent at connect), login and help
+            ClientMetricsMBean metrics = client.getMetrics();
+            assertEquals(MESSAGES + 3, metrics.getCommandsSent());
+            assertEquals(MESSAGES + 3, metrics.getLinesReceived());
+            assertTrue(metrics.getBytesSent() > 0);
+            assertTrue(metrics.getBytesReceived() > 0);
+            assertEquals(MESSAGES + 2, metrics.getReplyCount());
+            assertTrue(metrics.getReplyLatencyP99Micros() > 0);
+            assertTrue(metrics.getReceivedByCommand().contains("msgok=" + MESSAGES));
+            assertEquals(0, metrics.getRepliesPending());
+            assertTrue(metrics.getListenerCallCount() >= 2);
+            // The latency of each listener is reported separately
+            client.addListener(new DummyMsgReceiver());
+            assertTrue(metrics.getListenerLatencies().startsWith("no.ntnu.datakomm.chat.helpers.DummyResponseCounter@"));
+            assertTrue(metrics.getListenerLatencies().contains("; no.ntnu.datakomm.chat.helpers.DummyMsgReceiver@"));
+            assertTrue(metrics.getListenerLatencies().contains("calls=0"));
+
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = ((ClientMetrics) metrics).getObjectName();
+            assertEquals((long) (MESSAGES + 3), mbs.getAttribute(name, "CommandsSent"));
+
+            client.disconnect();
+            assertFalse(mbs.isRegistered(name));
+
+            // Also a lost connection removes the MBean
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            assertTrue(mbs.isRegistered(name));
+            server.disconnectAll();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertFalse(client.isConnectionActive());
+            assertFalse(mbs.isRegistered(name));
+        }
+    }
+
+    /**
+     * Test the heartbeat: probes measure the round-trip time without reaching the listeners, and
+     * a server which stops answering is detected within a few intervals.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testHeartbeatDetectsDeadServer() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient client = new TCPClient();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            final int INTERVAL_MS = 50;
+            final int MAX_MISSED = 3;
+            client.setHeartbeat(INTERVAL_MS, MAX_MISSED);
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            ClientMetricsMBean metrics = client.getMetrics();
+            assertTrue(metrics.getHeartbeatCount() >= 2);
+            assertTrue(metrics.getHeartbeatRttMinMicros() <= metrics.getHeartbeatRttP99Micros());
+            assertEquals(0, counter.supported);
+
+            // Replies to our own help command still reach the listeners
+            client.askSupportedCommands();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(1, counter.supported);
+
+            server.setMuted(true);
+            Thread.sleep(INTERVAL_MS * (MAX_MISSED + 2) + LOCAL_SLEEP_TIME);
+            assertFalse(client.isConnectionActive());
+            assertEquals(1, counter.disconn);
+            assertTrue(metrics.getHeartbeatsMissed() >= MAX_MISSED);
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test that non-ASCII messages are sent and received as UTF-8, in both transports.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testUtf8Messages() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient sender = new TCPClient();
+            TCPClient receiver = new TCPClient(TransportMode.NIO);
+            DummyMsgReceiver rec = new DummyMsgReceiver();
+            receiver.addListener(rec);
+            assertTrue(sender.connect(server.getHost(), server.getPort()));
+            assertTrue(receiver.connect(server.getHost(), server.getPort()));
+            sender.startListenThread();
+            receiver.startListenThread();
+            sender.tryLogin("Sender");
+            receiver.tryLogin("Receiver");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+
+            final String ASCII_TEXT = "Plain ASCII text";
+            final String UTF8_TEXT = "Bl\u00e5b\u00e6rsyltet\u00f8y \u00e6\u00f8\u00e5 \u20ac \uD83D\uDE00";
+            assertTrue(sender.sendPublicMessage(ASCII_TEXT));
+            assertTrue(sender.sendPublicMessage(UTF8_TEXT));
+            assertTrue(sender.sendPrivateMessage("Receiver", UTF8_TEXT));
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(rec.hasReceived(new TextMessage("Sender", false, ASCII_TEXT)));
+            assertTrue(rec.hasReceived(new TextMessage("Sender", false, UTF8_TEXT)));
+            assertTrue(rec.hasReceived(new TextMessage("Sender", true, UTF8_TEXT)));
+
+            sender.disconnect();
+            receiver.disconnect();
+        }
+    }
+
+    /**
+     * Test the compressed stream in both transports: compression is negotiated only with a server
+     * offering it, and messages pass through it intact.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testCompression() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer(true)) {
+            TCPClient c1 = new TCPClient();
+            TCPClient c2 = new TCPClient(TransportMode.NIO);
+            TCPClient plain = new TCPClient();
+            c1.setCompression(true);
+            c2.setCompression(true);
+            DummyMsgReceiver rec2 = new DummyMsgReceiver();
+            DummyMsgReceiver recPlain = new DummyMsgReceiver();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            c1.addListener(counter);
+            c2.addListener(rec2);
+            plain.addListener(recPlain);
+            for (TCPClient c : new TCPClient[]{c1, c2, plain}) {
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.startListenThread();
+            }
+            c1.tryLogin("Zipper1");
+            c2.tryLogin("Zipper2");
+            plain.tryLogin("Plain");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(c1.isCompressionActive());
+            assertTrue(c2.isCompressionActive());
+            assertFalse(plain.isCompressionActive());
+            assertEquals(1, counter.loginSuccess);
+            // The negotiation is not reported to the listeners
+            assertEquals(0, counter.supported);
+
+            final String TEXT = "Compressed hello \u00e6\u00f8\u00e5";
+            for (int i = 0; i < 100; i++) {
+                assertTrue(c1.sendPublicMessage(TEXT + " " + i));
+            }
+            assertTrue(c1.sendPrivateMessage("Zipper2", TEXT));
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(rec2.hasReceived(new TextMessage("Zipper1", false, TEXT + " 99")));
+            assertTrue(rec2.hasReceived(new TextMessage("Zipper1", true, TEXT)));
+            assertTrue(recPlain.hasReceived(new TextMessage("Zipper1", false, TEXT + " 0")));
+            assertEquals(0, counter.msgErr);
+
+            c1.askSupportedCommands();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(1, counter.supported);
+
+            c1.disconnect();
+            c2.disconnect();
+            plain.disconnect();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            // The zlib memory is freed with the connection
+            assertTrue(c1.getCodec().isEnded());
+            assertTrue(c2.getCodec().isEnded());
+        }
+    }
+
+    /**
+     * Test that the zlib memory is freed also when the server closes a compressed connection, on
+     * both transports.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When sleep is interrupted
+     */
+    @Test
+    public void testCompressionRemoteClose() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer(true)) {
+            TCPClient blocking = new TCPClient();
+            TCPClient nio = new TCPClient(TransportMode.NIO);
+            for (TCPClient c : new TCPClient[]{blocking, nio}) {
+                c.setCompression(true);
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.startListenThread();
+            }
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(blocking.isCompressionActive());
+            assertTrue(nio.isCompressionActive());
+
+            server.disconnectAll();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertFalse(blocking.isConnectionActive());
+            assertFalse(nio.isConnectionActive());
+            assertTrue(blocking.getCodec().isEnded());
+            assertTrue(nio.getCodec().isEnded());
+        }
+    }
+
+    /**
+     * Test sending many messages with one sendBatch() call: they arrive in order with very few
+     * socket writes, and every message gets its own result.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testBatchSend() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient sender = new TCPClient();
+            TCPClient receiver = new TCPClient(TransportMode.NIO);
+            // No linger, so any grouping of the writes comes from the batch itself
+            sender.setWriteBatching(64 * 1024, 0);
+            DummyMsgReceiver rec = new DummyMsgReceiver();
+            receiver.addListener(rec);
+            for (TCPClient c : new TCPClient[]{sender, receiver}) {
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.startListenThread();
+            }
+            sender.loginAsync("BulkSender").get(2, TimeUnit.SECONDS);
+            receiver.loginAsync("BulkReceiver").get(2, TimeUnit.SECONDS);
+
+            final int MSG_COUNT = 300;
+            List<OutgoingMessage> batch = new ArrayList<>();
+            for (int i = 0; i < MSG_COUNT; i++) {
+                batch.add(i % 3 == 0
+                        ? OutgoingMessage.privateMessage("BulkReceiver", "Bulk " + i)
+                        : OutgoingMessage.publicMessage("Bulk " + i));
+            }
+            batch.add(OutgoingMessage.privateMessage("NoSuchUser", "Lost"));
+            batch.add(OutgoingMessage.publicMessage("Two\nlines"));
+
+            int readsBefore = server.getReadCount();
+            List<CompletableFuture<Duration>> results = sender.sendBatch(batch);
+            assertEquals(batch.size(), results.size());
+            for (int i = 0; i < MSG_COUNT; i++) {
+                assertNotNull(results.get(i).get(2, TimeUnit.SECONDS));
+            }
+            try {
+                results.get(MSG_COUNT).get(2, TimeUnit.SECONDS);
+                fail("A private message to an unknown user must fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ServerErrorException);
+            }
+            // A newline can't be sent in the text protocol, the message is rejected before sending
+            assertTrue(results.get(MSG_COUNT + 1).isCompletedExceptionally());
+            assertTrue(server.getReadCount() - readsBefore < 10);
+
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            for (int i = 0; i < MSG_COUNT; i++) {
+                assertTrue(rec.hasReceived(new TextMessage("BulkSender", i % 3 == 0, "Bulk " + i)));
+            }
+
+            sender.disconnect();
+            receiver.disconnect();
+            for (CompletableFuture<Duration> result : sender.sendBatch(batch)) {
+                assertTrue(result.isCompletedExceptionally());
+            }
+        }
+    }
+
+    /**
+     * Test reading a large inbox as a stream with a small buffer and a slow consumer, on both
+     * transports: all messages arrive in order, and the other responses work afterwards.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testInboxStream() throws Exception {
+        for (TransportMode mode : TransportMode.values()) {
+            try (LocalChatServer server = new LocalChatServer()) {
+                TCPClient sender = new TCPClient();
+                TCPClient reader = new TCPClient(mode);
+                DummyResponseCounter pushed = new DummyResponseCounter();
+                DummyUserListingReceiver userRec = new DummyUserListingReceiver();
+                reader.addListener(pushed);
+                reader.addListener(userRec);
+                for (TCPClient c : new TCPClient[]{sender, reader}) {
+                    assertTrue(c.connect(server.getHost(), server.getPort()));
+                    c.startListenThread();
+                }
+                sender.loginAsync("InboxSender").get(2, TimeUnit.SECONDS);
+                reader.loginAsync("InboxReader").get(2, TimeUnit.SECONDS);
+
+                // The first read switches to sync mode, the inbox is still empty
+                try (InboxStream empty = reader.readInbox()) {
+                    assertFalse(empty.hasNext());
+                    assertEquals(0, empty.getExpectedCount());
+                }
+
+                final int MSG_COUNT = 3000;
+                List<OutgoingMessage> batch = new ArrayList<>();
+                for (int i = 0; i < MSG_COUNT; i++) {
+                    batch.add(i % 2 == 0
+                            ? OutgoingMessage.publicMessage("Stored " + i)
+                            : OutgoingMessage.privateMessage("InboxReader", "Stored " + i));
+                }
+                List<CompletableFuture<Duration>> acks = sender.sendBatch(batch);
+                acks.get(MSG_COUNT - 1).get(5, TimeUnit.SECONDS);
+
+                int count = 0;
+                try (InboxStream stream = reader.readInbox(16)) {
+                    while (stream.hasNext()) {
+                        TextMessage m = stream.next();
+                        assertEquals(new TextMessage("InboxSender", count % 2 == 1, "Stored " + count), m);
+                        count++;
+                        if (count % 500 == 0) {
+                            // A slow consumer: the reader has to stop and resume
+                            Thread.sleep(20);
+                        }
+                    }
+                    assertEquals(MSG_COUNT, stream.getExpectedCount());
+                }
+                assertEquals(MSG_COUNT, count);
+                // In sync mode nothing was pushed to the listeners
+                assertEquals(0, pushed.msg);
+
+                // Closing early throws the rest away, the responses after it still arrive
+                assertNotNull(sender.sendPublicMessageAsync("One more").get(2, TimeUnit.SECONDS));
+                assertNotNull(sender.sendPublicMessageAsync("And another").get(2, TimeUnit.SECONDS));
+                try (InboxStream stream = reader.readInbox(1)) {
+                    assertEquals(new TextMessage("InboxSender", false, "One more"), stream.next());
+                }
+                reader.refreshUserList();
+                Thread.sleep(LOCAL_SLEEP_TIME);
+                assertEquals(2, userRec.getCount());
+                assertEquals(0, pushed.msg);
+
+                sender.disconnect();
+                reader.disconnect();
+                try {
+                    reader.readInbox();
+                    fail("Reading the inbox needs a connection");
+                } catch (IOException e) {
+                    // Expected
+                }
+            }
+        }
+    }
+
+    /**
+     * Test the mode negotiation: async mode is asked for at connect, reading the inbox switches to
+     * sync mode, and switchMode() goes back to async mode where messages are pushed again.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testServerModes() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient sender = new TCPClient();
+            TCPClient receiver = new TCPClient(TransportMode.NIO);
+            DummyResponseCounter counter = new DummyResponseCounter();
+            receiver.addListener(counter);
+            assertEquals(ServerMode.UNKNOWN, receiver.getMode());
+            for (TCPClient c : new TCPClient[]{sender, receiver}) {
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.startListenThread();
+            }
+            sender.loginAsync("ModeSender").get(2, TimeUnit.SECONDS);
+            receiver.loginAsync("ModeReceiver").get(2, TimeUnit.SECONDS);
+            // The modeok came before the loginok
+            assertEquals(ServerMode.ASYNC, receiver.getMode());
+
+            sender.sendPublicMessageAsync("Pushed").get(2, TimeUnit.SECONDS);
+            try (InboxStream stream = receiver.readInbox()) {
+                assertFalse(stream.hasNext());
+            }
+            assertEquals(ServerMode.SYNC, receiver.getMode());
+            sender.sendPublicMessageAsync("Kept").get(2, TimeUnit.SECONDS);
+            receiver.switchMode(ServerMode.ASYNC).get(2, TimeUnit.SECONDS);
+            assertEquals(ServerMode.ASYNC, receiver.getMode());
+            sender.sendPublicMessageAsync("Pushed again").get(2, TimeUnit.SECONDS);
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            // The message sent in sync mode waits in the inbox
+            assertEquals(2, counter.msg);
+            assertEquals(0, counter.cmdErr);
+
+            receiver.disconnect();
+            assertEquals(ServerMode.ASYNC, receiver.getMode());
+            assertTrue(receiver.connect(server.getHost(), server.getPort()));
+            receiver.startListenThread();
+            // Every connection starts in the server's default mode until modeok arrives
+            receiver.switchMode(ServerMode.SYNC).get(2, TimeUnit.SECONDS);
+            assertEquals(ServerMode.SYNC, receiver.getMode());
+            sender.disconnect();
+            receiver.disconnect();
+        }
+    }
+
+    /**
+     * Test that the async command sent on connect can't change the mode when the server refuses
+     * it or never answers: the modeok of a later sync command is not taken for it. A late modeok
+     * is taken by the timed-out async command, not by the sync command sent after it.
+     *
+     * @throws Exception When the local server can't be started or a reply does not arrive
+     */
+    @Test
+    public void testServerModesUnconfirmed() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            server.reject("async");
+            TCPClient refused = new TCPClient();
+            assertTrue(refused.connect(server.getHost(), server.getPort()));
+            refused.startListenThread();
+            refused.loginAsync("Refused").get(2, TimeUnit.SECONDS);
+            assertEquals(ServerMode.UNKNOWN, refused.getMode());
+            refused.switchMode(ServerMode.SYNC).get(2, TimeUnit.SECONDS);
+            assertEquals(ServerMode.SYNC, refused.getMode());
+            assertEquals(0, refused.getRepliesPending());
+            refused.disconnect();
+        }
+        try (LocalChatServer server = new LocalChatServer()) {
+            server.ignore("async");
+            TCPClient unanswered = new TCPClient(TransportMode.NIO);
+            unanswered.setReplyTimeout(LOCAL_SLEEP_TIME);
+            assertTrue(unanswered.connect(server.getHost(), server.getPort()));
+            unanswered.startListenThread();
+            unanswered.loginAsync("Unanswered").get(2, TimeUnit.SECONDS);
+            Thread.sleep(2 * LOCAL_SLEEP_TIME);
+            assertEquals(0, unanswered.getRepliesPending());
+            // The inbox switches to sync; its modeok belongs to the sync command
+            try (InboxStream stream = unanswered.readInbox()) {
+                assertFalse(stream.hasNext());
+            }
+            assertEquals(ServerMode.SYNC, unanswered.getMode());
+            unanswered.disconnect();
+        }
+        try (LocalChatServer server = new LocalChatServer()) {
+            server.ignore("async");
+            server.ignore("sync");
+            TCPClient late = new TCPClient();
+            late.setReplyTimeout(LOCAL_SLEEP_TIME);
+            assertTrue(late.connect(server.getHost(), server.getPort()));
+            late.startListenThread();
+            Thread.sleep(2 * LOCAL_SLEEP_TIME);
+            // Timed out, but still waiting for its late reply
+            assertEquals(1, late.getRepliesPending());
+            late.setReplyTimeout(5000);
+            CompletableFuture<Duration> sync = late.switchMode(ServerMode.SYNC);
+            Thread.sleep(LOCAL_SLEEP_TIME / 3);
+            // The late reply to the async command does not complete the sync command
+            server.sendToAll("modeok");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertFalse(sync.isDone());
+            assertEquals(ServerMode.UNKNOWN, late.getMode());
+            // The reply to the sync command
+            server.sendToAll("modeok");
+            sync.get(2, TimeUnit.SECONDS);
+            assertEquals(ServerMode.SYNC, late.getMode());
+            assertEquals(0, late.getRepliesPending());
+            late.disconnect();
+        }
+    }
+
+    /**
+     * Test that a cmderr reply answers the oldest command waiting, whatever its type, so that the
+     * replies after it are still matched with the right commands.
+     *
+     * @throws Exception When the local server can't be started or a reply does not arrive
+     */
+    @Test
+    public void testCommandErrorCorrelation() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            server.reject("sync");
+            server.reject("inbox");
+            TCPClient client = new TCPClient();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            client.loginAsync("Rejected").get(2, TimeUnit.SECONDS);
+
+            CompletableFuture<Duration> sync = client.switchMode(ServerMode.SYNC);
+            CompletableFuture<Duration> async = client.switchMode(ServerMode.ASYNC);
+            try {
+                sync.get(2, TimeUnit.SECONDS);
+                fail("The sync request was refused");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ServerErrorException);
+            }
+            // The modeok belongs to the async request, not to the refused sync
+            async.get(2, TimeUnit.SECONDS);
+            assertEquals(ServerMode.ASYNC, client.getMode());
+            client.sendPublicMessageAsync("Still in order").get(2, TimeUnit.SECONDS);
+
+            // A refused inbox request ends the stream at once
+            try (InboxStream stream = client.readInbox()) {
+                stream.hasNext();
+                fail("The inbox request was refused");
+            } catch (UncheckedIOException e) {
+                assertTrue(e.getMessage().contains("refused"));
+            }
+            assertEquals(0, client.getRepliesPending());
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(3, counter.cmdErr);
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test the user list diffs: each refresh gives one full list, plus the users who joined and
+     * left since the previous list.
+     *
+     * @throws Exception When the local server can't be started, or a future fails unexpectedly
+     */
+    @Test
+    public void testUserListDiff() throws Exception {
+        try (LocalChatServer server = new LocalChatServer()) {
+            TCPClient watcher = new TCPClient(TransportMode.NIO);
+            TCPClient alice = new TCPClient();
+            TCPClient bob = new TCPClient();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            watcher.addListener(counter);
+            for (TCPClient c : new TCPClient[]{watcher, alice, bob}) {
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.startListenThread();
+            }
+            watcher.loginAsync("Watcher").get(2, TimeUnit.SECONDS);
+            alice.loginAsync("Alice").get(2, TimeUnit.SECONDS);
+            bob.loginAsync("Bob").get(2, TimeUnit.SECONDS);
+
+            watcher.refreshUserList();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            // The first list reports everybody as joined
+            assertEquals(1, counter.userList);
+            assertEquals(Arrays.asList("Watcher", "Alice", "Bob"), counter.joined);
+            assertTrue(counter.left.isEmpty());
+
+            // Nothing changed: only the full list
+            watcher.refreshUserList();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(2, counter.userList);
+            assertEquals(3, counter.joined.size());
+
+            bob.disconnect();
+            TCPClient carol = new TCPClient();
+            assertTrue(carol.connect(server.getHost(), server.getPort()));
+            carol.startListenThread();
+            carol.loginAsync("Carol").get(2, TimeUnit.SECONDS);
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            watcher.refreshUserList();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(3, counter.userList);
+            assertEquals(Arrays.asList("Watcher", "Alice", "Bob", "Carol"), counter.joined);
+            assertEquals(Arrays.asList("Bob"), counter.left);
+
+            // After a disconnect the list starts over
+            watcher.disconnect();
+            assertTrue(watcher.connect(server.getHost(), server.getPort()));
+            watcher.startListenThread();
+            watcher.refreshUserList();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(6, counter.joined.size());
+            assertEquals(1, counter.left.size());
+
+            // So does it after a lost connection
+            server.disconnectAll();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertFalse(watcher.isConnectionActive());
+            assertTrue(watcher.connect(server.getHost(), server.getPort()));
+            watcher.startListenThread();
+            watcher.loginAsync("Watcher").get(2, TimeUnit.SECONDS);
+            watcher.refreshUserList();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(7, counter.joined.size());
+            assertEquals("Watcher", counter.joined.get(6));
+            assertEquals(1, counter.left.size());
+
+            for (TCPClient c : new TCPClient[]{watcher, alice, carol}) {
+                c.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test the binary framing: it is negotiated on both transports, alone and together with
+     * compression, message text may contain newlines, and the other responses still work.
+     *
+     * @throws IOException          When the local server can't be started
+     * @throws InterruptedException When sleep is interrupted
+     */
+    @Test
+    public void testBinaryFraming() throws IOException, InterruptedException {
+        try (LocalChatServer server = new LocalChatServer(true, true)) {
+            TCPClient c1 = new TCPClient();
+            TCPClient c2 = new TCPClient(TransportMode.NIO);
+            TCPClient c3 = new TCPClient(TransportMode.NIO);
+            TCPClient plain = new TCPClient();
+            c1.setBinaryFraming(true);
+            c2.setBinaryFraming(true);
+            c3.setBinaryFraming(true);
+            c3.setCompression(true);
+            DummyResponseCounter counter = new DummyResponseCounter();
+            DummyMsgReceiver rec2 = new DummyMsgReceiver();
+            DummyMsgReceiver rec3 = new DummyMsgReceiver();
+            DummyMsgReceiver recPlain = new DummyMsgReceiver();
+            c1.addListener(counter);
+            c2.addListener(rec2);
+            c3.addListener(rec3);
+            plain.addListener(recPlain);
+            for (TCPClient c : new TCPClient[]{c1, c2, c3, plain}) {
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.startListenThread();
+            }
+            c1.tryLogin("Framed1");
+            c2.tryLogin("Framed2");
+            c3.tryLogin("Framed3");
+            plain.tryLogin("Plain");
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(c1.isBinaryFramingActive());
+            assertTrue(c2.isBinaryFramingActive());
+            assertTrue(c3.isBinaryFramingActive());
+            assertTrue(c3.isCompressionActive());
+            assertFalse(plain.isBinaryFramingActive());
+            assertEquals(1, counter.loginSuccess);
+            // The negotiation is not reported to the listeners
+            assertEquals(0, counter.supported);
+
+            final String TEXT = "Two lines\nin one message \u00e6\u00f8\u00e5";
+            assertTrue(c1.sendPublicMessage(TEXT));
+            assertTrue(c1.sendPrivateMessage("Framed3", "Private " + TEXT));
+            assertTrue(plain.sendPublicMessage("From the text side"));
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertTrue(rec2.hasReceived(new TextMessage("Framed1", false, TEXT)));
+            assertTrue(rec3.hasReceived(new TextMessage("Framed1", false, TEXT)));
+            assertTrue(rec3.hasReceived(new TextMessage("Framed1", true, "Private " + TEXT)));
+            assertTrue(rec2.hasReceived(new TextMessage("Plain", false, "From the text side")));
+            assertEquals(0, counter.msgErr);
+
+            DummyUserListingReceiver userRec = new DummyUserListingReceiver();
+            c1.addListener(userRec);
+            c1.refreshUserList();
+            c1.askSupportedCommands();
+            Thread.sleep(LOCAL_SLEEP_TIME);
+            assertEquals(4, userRec.getCount());
+            assertTrue(userRec.contains("Plain"));
+            assertEquals(1, counter.supported);
+
+            for (TCPClient c : new TCPClient[]{c1, c2, c3, plain}) {
+                c.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test the framer on binary frames: fields are read straight from the buffer, also when a
+     * frame arrives in pieces, and a frame longer than the limit is rejected.
+     *
+     * @throws IOException When a valid frame is rejected
+     */
+    @Test
+    public void testBinaryFramingLimits() throws IOException {
+        Utf8LineEncoder encoder = new Utf8LineEncoder();
+        LineFramer framer = new LineFramer(StandardCharsets.UTF_8);
+        framer.setBinary(true);
+        byte[] frame = encoder.encodeFrame("msg Sender Text with spaces\nand a newline");
+        for (byte b : frame) {
+            assertNull(framer.nextLine());
+            framer.feed(new byte[]{b}, 0, 1);
+        }
+        ServerLine line = framer.nextLine();
+        assertNotNull(line);
+        assertTrue(line.isCommand("msg".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("Sender", line.getFirstArg());
+        assertEquals("Text with spaces\nand a newline", line.getArgsAfterFirst());
+        assertNull(framer.nextLine());
+
+        frame = encoder.encodeFrame("users a b c");
+        framer.feed(frame, 0, frame.length);
+        line = framer.nextLine();
+        assertArrayEquals(new String[]{"a", "b", "c"}, line.splitArgs());
+        assertEquals("a b c", line.getArgs());
+        assertEquals("users a b c".length(), line.length());
+
+        // msg (id 2), one field, length MAX_FRAME_LENGTH + 1 as a varint, and no data yet
+        int tooLong = LineFramer.MAX_FRAME_LENGTH + 1;
+        byte[] header = {2, 1, (byte) (tooLong & 0x7f | 0x80), (byte) (tooLong >>> 7 & 0x7f | 0x80),
+                (byte) (tooLong >>> 14)};
+        framer.feed(header, 0, header.length);
+        try {
+            framer.nextLine();
+            fail("An oversized frame must be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // A length which does not fit in an int
+        LineFramer overflow = new LineFramer(StandardCharsets.UTF_8);
+        overflow.setBinary(true);
+        byte[] huge = {2, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f};
+        overflow.feed(huge, 0, huge.length);
+        try {
+            overflow.nextLine();
+            fail("A negative length must be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * @return Total CPU time used by all the live client listener threads, in nanoseconds
+     */
+    private static long listenerThreadsCpuNanos() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("chat-listener")) {
+                // -1 if the thread has terminated meanwhile
+                total += Math.max(0, threadBean.getThreadCpuTime(t.getId()));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param prefix Start of the thread names
+     * @return Number of live threads whose name starts with the prefix
+     */
+    private static int countThreads(String prefix) {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
 }
@@ -0,0 +1,126 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.collections.ListChangeListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TranscriptTest {
+
+    /**
+     * @param i Number of the message
+     * @return A message entry, sent or received, private or public depending on the number
+     */
+    private static TranscriptEntry entry(int i) {
+        TranscriptEntry.Kind kind = i % 2 == 0 ? TranscriptEntry.Kind.SENT : TranscriptEntry.Kind.RECEIVED;
+        return new TranscriptEntry(kind, new TextMessage("user" + i, i % 3 == 0, "Message æ " + i));
+    }
+
+    /**
+     * Test the chat window transcript: only the retention is kept in the window, and older and
+     * newer messages are paged in from the history.
+     */
+    @Test
+    public void testPaging() {
+        final int RETENTION = 50;
+        Transcript transcript = new Transcript(RETENTION, 10000);
+        for (int i = 0; i < 1000; i++) {
+            transcript.append(entry(i));
+        }
+        assertEquals(1000, transcript.size());
+        assertEquals(RETENTION, transcript.getItems().size());
+        assertEquals(950, transcript.getFirstIndex());
+        assertTrue(transcript.isAtEnd());
+        assertEquals("Message æ 999", transcript.getItems().get(RETENTION - 1).getMessage().getText());
+
+        // Scrolling up copies older messages and drops the newest ones
+        assertEquals(20, transcript.pageOlder(20));
+        assertEquals(930, transcript.getFirstIndex());
+        assertEquals(RETENTION, transcript.getItems().size());
+        assertFalse(transcript.isAtEnd());
+        TranscriptEntry entry = transcript.getItems().get(0);
+        assertEquals(new TextMessage("user930", true, "Message æ 930"), entry.getMessage());
+        assertEquals(TranscriptEntry.Kind.SENT, entry.getKind());
+
+        // While the user reads old messages, new ones don't move the window
+        transcript.append(new TranscriptEntry(TranscriptEntry.Kind.WARNING, new TextMessage("err", false, "Late")));
+        assertEquals(930, transcript.getFirstIndex());
+        assertEquals(1001, transcript.size());
+
+        while (transcript.pageOlder(100) > 0) {
+            assertEquals(RETENTION, transcript.getItems().size());
+        }
+        assertEquals(0, transcript.getFirstIndex());
+        assertEquals("Message æ 0", transcript.getItems().get(0).getMessage().getText());
+
+        assertEquals(30, transcript.pageNewer(30));
+        assertEquals(30, transcript.getFirstIndex());
+        transcript.jumpToEnd();
+        assertTrue(transcript.isAtEnd());
+        assertEquals("Late", transcript.getItems().get(RETENTION - 1).getMessage().getText());
+        assertEquals(0, transcript.pageNewer(10));
+    }
+
+    /**
+     * Test the history limit: the oldest messages are dropped, also from the window when the user
+     * was looking at them.
+     */
+    @Test
+    public void testHistoryLimit() {
+        final int RETENTION = 10;
+        final int LIMIT = 80;
+        Transcript transcript = new Transcript(RETENTION, LIMIT);
+        for (int i = 0; i < 200; i++) {
+            transcript.append(entry(i));
+            assertTrue(transcript.size() <= LIMIT);
+        }
+        assertTrue(transcript.isAtEnd());
+        assertEquals("Message æ 199", transcript.getItems().get(RETENTION - 1).getMessage().getText());
+
+        // Scroll back to the oldest message kept, then let it be dropped
+        while (transcript.pageOlder(RETENTION) > 0) {
+            assertEquals(RETENTION, transcript.getItems().size());
+        }
+        int oldest = 200 - transcript.size();
+        assertEquals("Message æ " + oldest, transcript.getItems().get(0).getMessage().getText());
+        int size = transcript.size();
+        for (int i = 200; transcript.size() >= size; i++) {
+            size = transcript.size();
+            transcript.append(entry(i));
+        }
+        // An eighth of the limit was dropped, the window still starts at the oldest message
+        assertEquals(0, transcript.getFirstIndex());
+        assertEquals(RETENTION, transcript.getItems().size());
+        assertEquals("Message æ " + (oldest + LIMIT / 8), transcript.getItems().get(0).getMessage().getText());
+
+        try {
+            new Transcript(RETENTION, RETENTION - 1);
+            fail("The history must hold at least the window");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test that the messages of a burst are added to the window in one change, and only those
+     * which stay in it.
+     */
+    @Test
+    public void testAppendAllIsOneChange() {
+        Transcript transcript = new Transcript(100, 1000);
+        int[] changes = {0};
+        transcript.getItems().addListener((ListChangeListener<TranscriptEntry>) c -> changes[0]++);
+        List<TranscriptEntry> burst = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            burst.add(new TranscriptEntry(TranscriptEntry.Kind.RECEIVED, new TextMessage("burst", false, "Burst " + i)));
+        }
+        transcript.appendAll(burst);
+        assertEquals(1, changes[0]);
+        assertEquals(150, transcript.getFirstIndex());
+        assertEquals("Burst 150", transcript.getItems().get(0).getMessage().getText());
+        assertTrue(transcript.isAtEnd());
+    }
+}
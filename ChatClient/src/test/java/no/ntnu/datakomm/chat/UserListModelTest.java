@@ -0,0 +1,37 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.collections.ListChangeListener;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class UserListModelTest {
+
+    /**
+     * Test the user panel model: it stays sorted while users join and leave, and an update only
+     * touches the users who changed.
+     */
+    @Test
+    public void testSortedIncrementalUpdates() {
+        UserListModel model = new UserListModel();
+        model.addAll(new String[]{"carol", "Bob", "alice", "Dave"});
+        assertEquals(Arrays.asList("alice", "Bob", "carol", "Dave"), model.getUsers());
+
+        int[] changes = {0};
+        model.getUsers().addListener((ListChangeListener<String>) c -> {
+            while (c.next()) {
+                changes[0] += c.getAddedSize() + c.getRemovedSize();
+            }
+        });
+        model.addAll(new String[]{"Bob", "bert", "Zed"});
+        model.removeAll(new String[]{"carol", "nobody"});
+        assertEquals(Arrays.asList("alice", "bert", "Bob", "Dave", "Zed"), model.getUsers());
+        // Two added and one removed, the others were not touched
+        assertEquals(3, changes[0]);
+
+        model.clear();
+        assertTrue(model.getUsers().isEmpty());
+    }
+}
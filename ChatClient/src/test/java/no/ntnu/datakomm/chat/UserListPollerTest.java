@@ -0,0 +1,182 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.ManualScheduler;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class UserListPollerTest {
+
+    /**
+     * Test that the interval is updated by the replies: it doubles after every reply without a
+     * change, up to the maximum, drops back to the minimum after a change, and the next poll is
+     * counted from the previous one, not from the reply.
+     */
+    @Test
+    public void testIntervalFollowsReplies() {
+        ManualScheduler scheduler = new ManualScheduler();
+        AtomicInteger polls = new AtomicInteger();
+        UserListPoller poller = new UserListPoller(polls::incrementAndGet, () -> true, 20, 160,
+                scheduler, scheduler::nanoTime);
+        poller.start();
+        assertTrue(poller.isRunning());
+        scheduler.advance(0);
+        assertEquals(1, polls.get());
+
+        // An immediate reply: the next poll is 40 ms later
+        poller.userListReceived();
+        assertEquals(40, poller.getInterval());
+        scheduler.advance(39);
+        assertEquals(1, polls.get());
+        scheduler.advance(1);
+        assertEquals(2, polls.get());
+
+        // A reply 5 ms after the poll: the next poll is still 80 ms after the previous one
+        scheduler.advance(5);
+        poller.userListReceived();
+        assertEquals(80, poller.getInterval());
+        scheduler.advance(74);
+        assertEquals(2, polls.get());
+        scheduler.advance(1);
+        assertEquals(3, polls.get());
+
+        // Up to the maximum, and no further
+        poller.userListReceived();
+        scheduler.advance(160);
+        assertEquals(4, polls.get());
+        poller.userListReceived();
+        assertEquals(160, poller.getInterval());
+
+        // A reply which changed the list: back to the minimum
+        poller.listChanged();
+        poller.userListReceived();
+        assertEquals(20, poller.getInterval());
+        scheduler.advance(20);
+        assertEquals(5, polls.get());
+        assertEquals(1, scheduler.getWaitingCount());
+    }
+
+    /**
+     * Test that polling goes on at the current interval while no reply arrives, and that a reply
+     * which arrives late or while the request is still being sent replaces the next poll instead
+     * of adding one.
+     */
+    @Test
+    public void testPollsWithoutReply() {
+        ManualScheduler scheduler = new ManualScheduler();
+        AtomicInteger polls = new AtomicInteger();
+        AtomicBoolean replyDuringPoll = new AtomicBoolean(false);
+        AtomicReference<UserListPoller> ref = new AtomicReference<>();
+        UserListPoller poller = new UserListPoller(() -> {
+            polls.incrementAndGet();
+            if (replyDuringPoll.get()) {
+                ref.get().userListReceived();
+            }
+        }, () -> true, 20, 160, scheduler, scheduler::nanoTime);
+        ref.set(poller);
+        poller.start();
+        scheduler.advance(0);
+        assertEquals(1, polls.get());
+
+        // No reply: polled every 20 ms
+        scheduler.advance(20);
+        assertEquals(2, polls.get());
+        scheduler.advance(20);
+        assertEquals(3, polls.get());
+        assertEquals(20, poller.getInterval());
+
+        // A reply 15 ms after the poll: the next poll is 40 ms after the previous one
+        scheduler.advance(15);
+        poller.userListReceived();
+        scheduler.advance(24);
+        assertEquals(3, polls.get());
+        scheduler.advance(1);
+        assertEquals(4, polls.get());
+
+        // A reply before the poll has returned: only one next poll, 80 ms later
+        replyDuringPoll.set(true);
+        scheduler.advance(40);
+        assertEquals(5, polls.get());
+        assertEquals(80, poller.getInterval());
+        assertEquals(1, scheduler.getWaitingCount());
+        replyDuringPoll.set(false);
+        scheduler.advance(79);
+        assertEquals(5, polls.get());
+        scheduler.advance(1);
+        assertEquals(6, polls.get());
+    }
+
+    /**
+     * Test that the maximum interval is used while the window is idle, whatever the replies, and
+     * that the list is polled at once when the window is back.
+     */
+    @Test
+    public void testIdle() {
+        ManualScheduler scheduler = new ManualScheduler();
+        AtomicInteger polls = new AtomicInteger();
+        UserListPoller poller = new UserListPoller(polls::incrementAndGet, () -> true, 20, 160,
+                scheduler, scheduler::nanoTime);
+        poller.start();
+        scheduler.advance(0);
+        assertEquals(1, polls.get());
+
+        // The poll scheduled before the window was minimized is kept, then the maximum is used
+        poller.setIdle(true);
+        assertEquals(160, poller.getInterval());
+        poller.userListReceived();
+        assertEquals(160, poller.getInterval());
+        scheduler.advance(20);
+        assertEquals(2, polls.get());
+        scheduler.advance(159);
+        assertEquals(2, polls.get());
+        scheduler.advance(1);
+        assertEquals(3, polls.get());
+
+        // Restored: polled at once, at the minimum interval again
+        poller.setIdle(false);
+        scheduler.advance(0);
+        assertEquals(4, polls.get());
+        assertEquals(20, poller.getInterval());
+        assertEquals(1, scheduler.getWaitingCount());
+    }
+
+    /**
+     * Test that polling ends on stop() and when the connection is gone, and that a late reply
+     * does not start it again.
+     */
+    @Test
+    public void testStop() {
+        ManualScheduler scheduler = new ManualScheduler();
+        AtomicInteger polls = new AtomicInteger();
+        AtomicBoolean active = new AtomicBoolean(true);
+        UserListPoller poller = new UserListPoller(polls::incrementAndGet, active::get, 20, 160,
+                scheduler, scheduler::nanoTime);
+        poller.start();
+        scheduler.advance(0);
+        assertEquals(1, polls.get());
+
+        // Nothing more after stop()
+        poller.stop();
+        assertFalse(poller.isRunning());
+        poller.userListReceived();
+        scheduler.advance(1000);
+        assertEquals(1, polls.get());
+        assertEquals(0, scheduler.getWaitingCount());
+
+        // The polling ends by itself when the connection is gone
+        poller.start();
+        scheduler.advance(0);
+        assertEquals(2, polls.get());
+        active.set(false);
+        scheduler.advance(20);
+        assertFalse(poller.isRunning());
+        poller.userListReceived();
+        scheduler.advance(1000);
+        assertEquals(2, polls.get());
+        assertEquals(0, scheduler.getWaitingCount());
+    }
+}
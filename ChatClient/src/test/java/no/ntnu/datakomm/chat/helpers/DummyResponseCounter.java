@@ -3,6 +3,10 @@ package no.ntnu.datakomm.chat.helpers;
 import no.ntnu.datakomm.chat.ChatListener;
 import no.ntnu.datakomm.chat.TextMessage;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * A class that just remembers what responses have been received
  */
@@ -16,6 +20,10 @@ public class DummyResponseCounter implements ChatListener {
     public int supported = 0;
     public int cmdErr = 0;
     public int disconn = 0;
+    public int reconnected = 0;
+    // The users reported as joined and left, in the order of the events
+    public final List<String> joined = new ArrayList<>();
+    public final List<String> left = new ArrayList<>();
 
     @Override
     public void onLoginResult(boolean success, String errMsg) {
@@ -41,6 +49,16 @@ public class DummyResponseCounter implements ChatListener {
         userList++;
     }
 
+    @Override
+    public void onUsersJoined(String[] usernames) {
+        joined.addAll(Arrays.asList(usernames));
+    }
+
+    @Override
+    public void onUsersLeft(String[] usernames) {
+        left.addAll(Arrays.asList(usernames));
+    }
+
     @Override
     public void onSupportedCommands(String[] commands) {
         supported++;
@@ -55,5 +73,10 @@ public class DummyResponseCounter implements ChatListener {
     public void onDisconnect() {
         disconn++;
     }
+
+    @Override
+    public void onReconnected() {
+        reconnected++;
+    }
     
 }
@@ -0,0 +1,480 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A minimal chat server running on localhost, so that the client can be tested without the
+ * real chat server. Supports login, msg, privmsg, users, help, sync, async and inbox, and
+ * optionally the compressed stream ("compress deflate") and binary framing ("binary").
+ */
+public class LocalChatServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    // Number of socket reads which returned data, over all clients
+    private final AtomicInteger readCount = new AtomicInteger();
+    // When true, the server reads the commands but never answers, like a hung server
+    private volatile boolean muted = false;
+    // Commands answered with "cmderr", like a server which does not know them
+    private final Set<String> rejected = ConcurrentHashMap.newKeySet();
+    // Commands read but never answered, like a server which silently drops them
+    private final Set<String> ignored = ConcurrentHashMap.newKeySet();
+    // True if the server offers compression and binary framing
+    private final boolean compression;
+    private final boolean binary;
+
+    // The command words of the binary framing, indexed by command id, and the number of fields of
+    // each (-1 for a list of words). The same table as the client uses
+    private static final String[] BINARY_COMMANDS = {
+            null, "login", "msg", "privmsg", "users", "help", "loginok", "loginerr", "msgok",
+            "msgerr", "cmderr", "supported", "inbox", "async", "sync", "compress", "compressok",
+            "modeok"
+    };
+    private static final int[] BINARY_ARITY = {
+            0, 1, 1, 2, -1, 0, 0, 1, 1,
+            1, 1, -1, 0, 0, 0, 1, 1,
+            0
+    };
+
+    /**
+     * Start the server on a free local port, without compression.
+     *
+     * @throws IOException When the server socket can't be opened
+     */
+    public LocalChatServer() throws IOException {
+        this(false);
+    }
+
+    /**
+     * Start the server on a free local port.
+     *
+     * @param compression When true, the server offers compression in its supported commands
+     * @throws IOException When the server socket can't be opened
+     */
+    public LocalChatServer(boolean compression) throws IOException {
+        this(compression, false);
+    }
+
+    /**
+     * Start the server on a free local port.
+     *
+     * @param compression When true, the server offers compression in its supported commands
+     * @param binary      When true, the server offers binary framing in its supported commands
+     * @throws IOException When the server socket can't be opened
+     */
+    public LocalChatServer(boolean compression, boolean binary) throws IOException {
+        this.compression = compression;
+        this.binary = binary;
+        serverSocket = new ServerSocket(0);
+        Thread acceptThread = new Thread(this::acceptClients, "local-chat-server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * @return The TCP port the server listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Host name to connect to
+     */
+    public String getHost() {
+        return "localhost";
+    }
+
+    /**
+     * Send a raw line to every connected client, for example a command the server would normally
+     * not send.
+     *
+     * @param line The line to send, without newline
+     */
+    public void sendToAll(String line) {
+        for (Session s : sessions) {
+            s.send(line);
+        }
+    }
+
+    /**
+     * @return Number of socket reads (returning data) done by the server so far. Shows how many
+     * separate writes the clients did, as long as the clients don't send faster than we read
+     */
+    public int getReadCount() {
+        return readCount.get();
+    }
+
+    /**
+     * @param muted When true, the server stops answering commands but keeps the connections open
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    /**
+     * Answer a command with "cmderr" from now on.
+     *
+     * @param command The command word
+     */
+    public void reject(String command) {
+        rejected.add(command);
+    }
+
+    /**
+     * Never answer a command from now on.
+     *
+     * @param command The command word
+     */
+    public void ignore(String command) {
+        ignored.add(command);
+    }
+
+    /**
+     * @return Number of currently connected clients
+     */
+    public int getClientCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Close the connections of all the clients, as if the server dropped them. New clients can
+     * still connect.
+     */
+    public void disconnectAll() {
+        for (Session s : sessions) {
+            s.close();
+        }
+    }
+
+    /**
+     * Stop accepting clients and close all the client connections.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Session s : sessions) {
+            s.close();
+        }
+    }
+
+    /**
+     * Accept clients until the server socket is closed, one thread per client.
+     */
+    private void acceptClients() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Session session = new Session(socket);
+                sessions.add(session);
+                Thread t = new Thread(session::run, "local-chat-session");
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            // Server socket closed, stop accepting
+        }
+    }
+
+    /**
+     * One connected client.
+     */
+    private class Session {
+        private final Socket socket;
+        private final OutputStream rawOut;
+        // Replaced when compression starts. Guarded by this
+        private OutputStream out;
+        // True after the switch to binary framing. Guarded by this
+        private boolean binaryOut = false;
+        // Replaced when compression starts. Used by the session thread only
+        private InputStream in;
+        private boolean binaryIn = false;
+        private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+        private volatile String username = null;
+        // In sync mode, the messages to this user are kept in the inbox until asked for. Both
+        // guarded by this
+        private boolean sync = false;
+        private final List<String> inbox = new ArrayList<>();
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.rawOut = socket.getOutputStream();
+            this.out = rawOut;
+            // Count the reads returning data
+            InputStream counting = new FilterInputStream(socket.getInputStream()) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        readCount.incrementAndGet();
+                    }
+                    return n;
+                }
+            };
+            // Lines are read byte by byte, so that nothing is read ahead when compression starts
+            this.in = new BufferedInputStream(counting);
+        }
+
+        void run() {
+            try {
+                String line;
+                while ((line = readLine()) != null) {
+                    if (!muted) {
+                        handle(line);
+                    }
+                }
+            } catch (IOException e) {
+                // Connection closed
+            } finally {
+                sessions.remove(this);
+                close();
+            }
+        }
+
+        /**
+         * @return The next line without the newline, or null at the end of the stream
+         */
+        String readLine() throws IOException {
+            if (binaryIn) {
+                return readFrame();
+            }
+            lineBytes.reset();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    return lineBytes.toString(StandardCharsets.UTF_8);
+                }
+                lineBytes.write(b);
+            }
+            return null;
+        }
+
+        /**
+         * Read a binary frame and convert it to a text line.
+         *
+         * @return The line, or null at the end of the stream
+         */
+        String readFrame() throws IOException {
+            int id = in.read();
+            if (id < 0) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder(BINARY_COMMANDS[id]);
+            int count = readVarint();
+            for (int i = 0; i < count; i++) {
+                byte[] field = new byte[readVarint()];
+                int read = 0;
+                while (read < field.length) {
+                    int n = in.read(field, read, field.length - read);
+                    if (n < 0) {
+                        return null;
+                    }
+                    read += n;
+                }
+                line.append(' ').append(new String(field, StandardCharsets.UTF_8));
+            }
+            return line.toString();
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("End of stream inside a frame");
+                }
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        void handle(String line) {
+            String[] parts = line.split(" ", 2);
+            String cmd = parts[0];
+            String args = parts.length > 1 ? parts[1] : "";
+            if (rejected.contains(cmd)) {
+                send("cmderr " + cmd + " not supported");
+                return;
+            }
+            if (ignored.contains(cmd)) {
+                return;
+            }
+            switch (cmd) {
+                case "login":
+                    Session other = findUser(args);
+                    if (other != null && other != this) {
+                        send("loginerr username already in use");
+                    } else if (args.matches("[A-Za-z0-9]+")) {
+                        username = args;
+                        send("loginok");
+                    } else {
+                        send("loginerr incorrect username format");
+                    }
+                    break;
+                case "msg":
+                    if (username == null) {
+                        send("msgerr unauthorized");
+                    } else {
+                        for (Session s : sessions) {
+                            if (s != this) {
+                                s.deliver("msg " + username + " " + args);
+                            }
+                        }
+                        send("msgok " + (sessions.size() - 1));
+                    }
+                    break;
+                case "privmsg":
+                    String[] recipientAndText = args.split(" ", 2);
+                    Session recipient = findUser(recipientAndText[0]);
+                    if (username == null) {
+                        send("msgerr unauthorized");
+                    } else if (recipient == null || recipientAndText.length < 2) {
+                        send("msgerr incorrect recipient");
+                    } else {
+                        recipient.deliver("privmsg " + username + " " + recipientAndText[1]);
+                        send("msgok 1");
+                    }
+                    break;
+                case "sync":
+                case "async":
+                    synchronized (this) {
+                        sync = cmd.equals("sync");
+                    }
+                    send("modeok");
+                    break;
+                case "inbox":
+                    synchronized (this) {
+                        send("inbox " + inbox.size());
+                        for (String message : inbox) {
+                            send(message);
+                        }
+                        inbox.clear();
+                    }
+                    break;
+                case "users":
+                    StringBuilder users = new StringBuilder("users");
+                    for (Session s : sessions) {
+                        if (s.username != null) {
+                            users.append(' ').append(s.username);
+                        }
+                    }
+                    send(users.toString());
+                    break;
+                case "help":
+                    send("supported login msg privmsg users help" + (compression ? " compress" : "")
+                            + (binary ? " binary" : ""));
+                    break;
+                case "binary":
+                    if (!binary) {
+                        send("cmderr binary framing not supported");
+                        break;
+                    }
+                    // Everything after the reply is framed, in both directions
+                    synchronized (this) {
+                        send("binaryok");
+                        binaryOut = true;
+                    }
+                    binaryIn = true;
+                    break;
+                case "compress":
+                    if (!compression || !args.equals("deflate")) {
+                        send("cmderr compression not supported");
+                        break;
+                    }
+                    // Everything after the reply is compressed, in both directions
+                    synchronized (this) {
+                        send("compressok deflate");
+                        out = new DeflaterOutputStream(rawOut, true);
+                    }
+                    in = new InflaterInputStream(in);
+                    break;
+                default:
+                    send("cmderr command not supported");
+            }
+        }
+
+        Session findUser(String name) {
+            for (Session s : sessions) {
+                if (name.equals(s.username)) {
+                    return s;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Send a message to this user, or keep it in the inbox in sync mode.
+         */
+        synchronized void deliver(String line) {
+            if (sync) {
+                inbox.add(line);
+            } else {
+                send(line);
+            }
+        }
+
+        synchronized void send(String line) {
+            try {
+                out.write(binaryOut ? encodeFrame(line) : (line + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                // The client is gone, the session thread notices it
+            }
+        }
+
+        /**
+         * Encode a text line as a binary frame.
+         */
+        byte[] encodeFrame(String line) throws IOException {
+            String[] wordAndArgs = line.split(" ", 2);
+            int id = Arrays.asList(BINARY_COMMANDS).indexOf(wordAndArgs[0]);
+            int arity = BINARY_ARITY[id];
+            String[] fields = wordAndArgs.length < 2 ? new String[0]
+                    : arity < 0 ? wordAndArgs[1].split(" ") : wordAndArgs[1].split(" ", arity);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(id);
+            writeVarint(frame, fields.length);
+            for (String field : fields) {
+                byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                writeVarint(frame, bytes.length);
+                frame.write(bytes);
+            }
+            return frame.toByteArray();
+        }
+
+        void writeVarint(ByteArrayOutputStream frame, int value) {
+            while ((value & ~0x7f) != 0) {
+                frame.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            frame.write(value);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler whose clock only moves when the test says so, for testing timing logic without
+ * sleeping. Tasks run on the thread calling advance(), in the order of their due time. Only
+ * one-shot Runnable tasks are supported.
+ */
+public class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final List<Task> tasks = new ArrayList<>();
+    private long nowNanos = 0;
+
+    /**
+     * A scheduled task.
+     */
+    private class Task extends FutureTask<Void> implements ScheduledFuture<Void> {
+        final long dueNanos;
+
+        Task(Runnable r, long dueNanos) {
+            super(r, null);
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - nowNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * @return The current time of this scheduler, in nanoseconds. Use as the clock of the code
+     * under test
+     */
+    public synchronized long nanoTime() {
+        return nowNanos;
+    }
+
+    /**
+     * Move the clock forward and run the tasks which are due, including those they schedule.
+     *
+     * @param millis Milliseconds to move forward, 0 to run the tasks due now
+     */
+    public synchronized void advance(long millis) {
+        long target = nowNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (true) {
+            Task next = null;
+            for (Task t : tasks) {
+                if (t.dueNanos <= target && (next == null || t.dueNanos < next.dueNanos)) {
+                    next = t;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            tasks.remove(next);
+            nowNanos = next.dueNanos;
+            next.run();
+        }
+        nowNanos = target;
+    }
+
+    /**
+     * @return Number of tasks waiting to run, cancelled ones excluded
+     */
+    public synchronized int getWaitingCount() {
+        tasks.removeIf(Task::isCancelled);
+        return tasks.size();
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        Task t = new Task(command, nowNanos + unit.toNanos(Math.max(0, delay)));
+        tasks.add(t);
+        return t;
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return true;
+    }
+}